@@ -0,0 +1,487 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the access log from a background thread so request threads never touch the file. Each request
+ * publishes its log fields into a bounded ring buffer without taking a lock, and the writer thread takes
+ * everything waiting, formats it into one buffer and appends it to the log file in a single write. When
+ * the ring is full requests either wait for space or their lines are dropped and counted. Rotating the
+ * log happens on the writer thread between batches, so requests carry on filling the ring meanwhile.
+ * When a write fails the lines in the batch are dropped and counted too, and the ring keeps being
+ * emptied, so a full or broken disk loses log lines rather than holding up requests.
+ *
+ * The log is either text, one line per request, or the compact binary records described in
+ * LogConverter, which turns them back into text.
+ *
+ * The ring is the bounded queue described by Dmitry Vyukov: each slot has a sequence number which says
+ * whether it is free for the producer claiming that position or full for the consumer reading it.
+ */
+public class AccessLog extends Thread {
+  // How long the writer sleeps when the ring is empty.
+  private static final long IDLE_NANOS = 10000000L;
+  // When the ring is full a request yields this many times, then parks for longer each time up to a
+  // millisecond, so waiting requests do not keep a core busy while the writer catches up.
+  private static final int FULL_SPINS = 16;
+  private static final long FULL_MAX_PARK_NANOS = 1000000L;
+  private static final int BATCH_SIZE = 65536;
+  // The most method and path ids in use before the binary dictionary starts over.
+  public static final int MAX_IDS = 65536;
+  // The most bytes a binary request record can take.
+  private static final int MAX_RECORD = 64;
+
+  /**
+   * The fields logged for one request, one per slot and reused each lap of the ring.
+   */
+  private static final class Record {
+    long time;
+    InetAddress address;
+    String method;
+    String target;
+    String version;
+    String requestLine;
+    byte[] statusLine;
+    long length;
+  }
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final Record[] records;
+  private final AtomicLong tail = new AtomicLong();
+  // Only moved by the writer, volatile so the status page can read it.
+  private volatile long head = 0;
+  private volatile boolean stopping = false;
+
+  private final boolean dropWhenFull;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong waited = new AtomicLong();
+  private volatile long written = 0;
+  // Lines in the batch, counted as written or dropped once it has been written out.
+  private int pending = 0;
+  // Set after a failed write, so a broken disk is reported once rather than on every batch.
+  private boolean failing = false;
+
+  private final Path path;
+  private final boolean binary;
+  private final LogRotator rotator;
+  // Null when the file could not be reopened after rotating, it is tried again before each batch.
+  private FileChannel file;
+  private long fileSize;
+  private long openedAt;
+  private final ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+
+  // Text format state.
+  private final StringBuilder line = new StringBuilder(256);
+  private long lastSecond = -1;
+  private String lastTimestamp = null;
+
+  // Binary format state, which starts over with each file so every file can be read on its own.
+  private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+  private long lastTime = 0;
+
+  /**
+   * Opens the log file for appending. The writing starts when the thread is started.
+   * @param path The log file, created if it does not exist.
+   * @param binary True to write binary records, false for text lines.
+   * @param size The number of lines the ring holds, rounded up to a power of two.
+   * @param dropWhenFull True to drop lines when the ring is full, false to make the request wait.
+   * @param rotator Decides when to rotate the log file, or null to never rotate it.
+   * @throws IOException If the log file cannot be opened.
+   */
+  public AccessLog(Path path, boolean binary, int size, boolean dropWhenFull, LogRotator rotator) throws IOException {
+    super("bws-access-log");
+    setDaemon(true);
+    int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    this.mask = capacity - 1;
+    this.sequences = new AtomicLongArray(capacity);
+    this.records = new Record[capacity];
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+      records[i] = new Record();
+    }
+    this.dropWhenFull = dropWhenFull;
+    this.path = path;
+    this.binary = binary;
+    this.rotator = rotator;
+    open();
+  }
+
+  /**
+   * Opens the log file, leaving it closed and null if it cannot be opened or its binary header cannot be
+   * written.
+   */
+  private void open() throws IOException {
+    file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    try {
+      fileSize = file.size();
+      openedAt = System.currentTimeMillis();
+      if (binary) {
+        // Anything left from a failed write belongs to the previous file.
+        batch.clear();
+        ids.clear();
+        lastTime = 0;
+        if (fileSize == 0) {
+          batch.put(LogConverter.MAGIC).put(LogConverter.FORMAT_VERSION);
+        } else {
+          // Carrying on from an earlier run, whose ids are not known.
+          batch.put(LogConverter.RESET);
+        }
+        flush();
+      }
+    } catch (IOException io) {
+      close();
+      throw io;
+    }
+  }
+
+  private void close() {
+    try {
+      file.close();
+    } catch (IOException io) {
+      WebServer.logln("ERROR: Failed to close the log file: " + io.getMessage());
+    }
+    file = null;
+  }
+
+  /**
+   * Publishes one request to be logged.
+   * @param time When the request was received, in milliseconds since the epoch.
+   * @param address The address of the client.
+   * @param method The request method, or null if the request line could not be parsed.
+   * @param target The requested resource, or null if the request line could not be parsed.
+   * @param version The HTTP version, ie '1.1', or null if the request line could not be parsed.
+   * @param requestLine The request line as received, only needed when it could not be parsed.
+   * @param statusLine The status line of the response.
+   * @param length The number of bytes in the response.
+   */
+  public void log(long time, InetAddress address, String method, String target, String version, String requestLine,
+      byte[] statusLine, long length) {
+    long position;
+    boolean counted = false;
+    int spins = 0;
+    long parkNanos = 10000L;
+    while (true) {
+      position = tail.get();
+      long sequence = sequences.get((int) position & mask);
+      if (sequence == position) {
+        // The slot is free, try to claim it.
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+      } else if (sequence < position) {
+        // The writer has not emptied this slot yet, so the ring is full.
+        if (dropWhenFull) {
+          dropped.incrementAndGet();
+          return;
+        }
+        if (!counted) {
+          waited.incrementAndGet();
+          counted = true;
+        }
+        LockSupport.unpark(this);
+        if (spins < FULL_SPINS) {
+          spins++;
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(parkNanos);
+          parkNanos = Math.min(parkNanos * 2, FULL_MAX_PARK_NANOS);
+        }
+      }
+      // Otherwise another request claimed the slot first, try the next one.
+    }
+    int slot = (int) position & mask;
+    Record r = records[slot];
+    r.time = time;
+    r.address = address;
+    r.method = method;
+    r.target = target;
+    r.version = version;
+    r.requestLine = requestLine;
+    r.statusLine = statusLine;
+    r.length = length;
+    // Publishing the sequence makes the fields above visible to the writer.
+    sequences.set(slot, position + 1);
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        if (drain() == 0) {
+          if (stopping) {
+            return;
+          }
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+      } catch (IOException io) {
+        if (!failing) {
+          WebServer.logln("ERROR: Failed to write to the log file: " + io.getMessage());
+          failing = true;
+        }
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Writes every line waiting in the ring, in as few writes as the batch buffer allows. Every slot is
+   * handed back even when a write fails, the lines lost are counted as dropped and the first failure is
+   * thrown once the ring is empty. Only called by the writer thread.
+   * @return The number of lines taken from the ring.
+   */
+  private int drain() throws IOException {
+    IOException failure = null;
+    if (file == null) {
+      try {
+        open();
+      } catch (IOException io) {
+        // The batch is written to nothing and its lines dropped until the file opens again.
+        failure = io;
+      }
+    }
+    int count = 0;
+    while (true) {
+      int slot = (int) head & mask;
+      if (sequences.get(slot) != head + 1) {
+        break;
+      }
+      Record r = records[slot];
+      try {
+        if (binary) {
+          writeBinary(r);
+        } else {
+          writeText(r);
+        }
+        pending++;
+      } catch (IOException io) {
+        dropped.incrementAndGet();
+        if (failure == null) {
+          failure = io;
+        }
+      }
+      r.address = null;
+      r.method = null;
+      r.target = null;
+      r.version = null;
+      r.requestLine = null;
+      r.statusLine = null;
+      // Hand the slot back to the producers for the next lap of the ring.
+      sequences.set(slot, head + mask + 1);
+      head++;
+      count++;
+    }
+    try {
+      flush();
+    } catch (IOException io) {
+      if (failure == null) {
+        failure = io;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    if (rotator != null && fileSize > 0 && rotator.due(fileSize, openedAt)) {
+      rotate();
+    }
+    return count;
+  }
+
+  /**
+   * Adds a record as a line of text, ie '14/Mar/2015 00:04:48 - 127.0.0.1 "GET / HTTP/1.1" 200 OK'.
+   */
+  private void writeText(Record r) throws IOException {
+    long second = r.time / 1000;
+    if (second != lastSecond) {
+      lastSecond = second;
+      lastTimestamp = HttpDate.formatLog(r.time);
+    }
+    line.setLength(0);
+    line.append(lastTimestamp).append(" - ").append(r.address.getHostAddress()).append(" \"");
+    if (r.method != null) {
+      line.append(r.method).append(' ').append(r.target).append(" HTTP/").append(r.version);
+    } else {
+      line.append(r.requestLine);
+    }
+    line.append("\" ").append(Response.statusText(r.statusLine)).append(System.lineSeparator());
+    put(line.toString().getBytes());
+  }
+
+  /**
+   * Adds a record in the binary format, preceded by the definitions of any method or path not seen before.
+   * When the new ones would not fit in the dictionary it is started over before either id is looked up,
+   * as a reset between the two would leave the record with an id from before it. The version byte only
+   * holds 1.0 and 1.1, so a request with any other version is logged by its whole request line.
+   */
+  private void writeBinary(Record r) throws IOException {
+    String method = r.method;
+    String requestLine = r.requestLine;
+    if (method != null && !r.version.equals("1.1") && !r.version.equals("1.0")) {
+      requestLine = method + ' ' + r.target + " HTTP/" + r.version;
+      method = null;
+    }
+    int needed = 0;
+    if (method != null) {
+      needed += ids.containsKey(method) ? 0 : 1;
+      needed += ids.containsKey(r.target) ? 0 : 1;
+    } else {
+      needed += ids.containsKey(requestLine) ? 0 : 1;
+    }
+    if (ids.size() + needed > MAX_IDS) {
+      // Scanners requesting endless made up paths would otherwise grow the dictionary without end.
+      if (batch.remaining() < MAX_RECORD) {
+        flush();
+      }
+      batch.put(LogConverter.RESET);
+      ids.clear();
+      lastTime = 0;
+    }
+    int methodId = 0;
+    int targetId;
+    if (method != null) {
+      methodId = id(method);
+      targetId = id(r.target);
+    } else {
+      targetId = id(requestLine);
+    }
+    if (batch.remaining() < MAX_RECORD) {
+      flush();
+    }
+    byte[] address = r.address.getAddress();
+    batch.put(LogConverter.REQUEST);
+    putVarLong(LogConverter.zigZag(r.time - lastTime));
+    lastTime = r.time;
+    batch.put((byte) address.length).put(address);
+    batch.putShort((short) Response.statusCode(r.statusLine));
+    putVarLong(methodId);
+    putVarLong(targetId);
+    batch.put((byte) (method != null && r.version.equals("1.1") ? 1 : 0));
+    putVarLong(r.length);
+  }
+
+  /**
+   * Gets the id of a method or path, defining a new one in the log if it has not been seen before. The
+   * caller makes sure there is room in the dictionary.
+   */
+  private int id(String value) throws IOException {
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    if (batch.remaining() < MAX_RECORD) {
+      flush();
+    }
+    id = ids.size() + 1;
+    ids.put(value, id);
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    batch.put(LogConverter.DEFINE);
+    putVarLong(id);
+    putVarLong(bytes.length);
+    put(bytes);
+    return id;
+  }
+
+  private void putVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      batch.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    batch.put((byte) value);
+  }
+
+  /**
+   * Adds bytes to the batch, writing it out first if they do not fit.
+   */
+  private void put(byte[] bytes) throws IOException {
+    if (batch.remaining() < bytes.length) {
+      flush();
+    }
+    if (bytes.length > batch.capacity()) {
+      write(ByteBuffer.wrap(bytes));
+    } else {
+      batch.put(bytes);
+    }
+  }
+
+  /**
+   * Starts a new log file. Only a rename happens here, the compressing is left to the rotator's thread.
+   */
+  private void rotate() throws IOException {
+    close();
+    try {
+      rotator.rotate();
+    } catch (IOException io) {
+      WebServer.logln("ERROR: Failed to rotate the log file: " + io.getMessage());
+    }
+    // Reopened either way, so a failed rename only means the old file keeps growing until next time. If
+    // this fails the next drain tries again.
+    open();
+  }
+
+  /**
+   * Writes out the lines still waiting and stops the writer, used when the server shuts down.
+   */
+  public void shutdown() {
+    stopping = true;
+    LockSupport.unpark(this);
+    try {
+      join(1000);
+    } catch (InterruptedException ie) {
+      // Shutting down anyway.
+    }
+  }
+
+  /**
+   * Writes the batch out and empties it. When the write fails the batch is emptied all the same and its
+   * lines are counted as dropped, as resending it could repeat what a partial write already wrote. A
+   * binary log then starts its dictionary over, as the definitions lost with the batch may be in use.
+   */
+  private void flush() throws IOException {
+    batch.flip();
+    boolean empty = !batch.hasRemaining();
+    try {
+      write(batch);
+    } catch (IOException io) {
+      batch.clear();
+      dropped.addAndGet(pending);
+      pending = 0;
+      if (binary) {
+        ids.clear();
+        lastTime = 0;
+        batch.put(LogConverter.RESET);
+      }
+      throw io;
+    }
+    batch.clear();
+    written += pending;
+    pending = 0;
+    if (!empty) {
+      failing = false;
+    }
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    if (file == null) {
+      throw new IOException("The log file is not open");
+    }
+    while (buffer.hasRemaining()) {
+      fileSize += file.write(buffer);
+    }
+  }
+
+  /**
+   * @return The counters for the status page.
+   */
+  public String status() {
+    return "log.format: " + (binary ? "binary" : "text") + "\r\n"
+      + "log.ring: " + (mask + 1) + "\r\n"
+      + "log.waiting: " + (tail.get() - head) + "\r\n"
+      + "log.written: " + written + "\r\n"
+      + "log.full_waits: " + waited.get() + "\r\n"
+      + "log.dropped: " + dropped.get() + "\r\n";
+  }
+}
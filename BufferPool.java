@@ -0,0 +1,343 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of direct buffers for writing to sockets, in a few size classes. Buffers are cut from large
+ * direct slabs, a class at a time. A connection only holds one while it has responses to write and
+ * hands it back before waiting for its next request, so sending a response neither allocates nor copies
+ * through the temporary direct buffer the JDK uses for heap arrays, and idle connections hold nothing.
+ * Slabs are cut until the pool reaches its limit, after which buffers that cannot be found in the pool
+ * are allocated on their own and counted as misses.
+ *
+ * Threads that live as long as the server, ie the workers and the event loops, can keep a few buffers
+ * of each class to themselves, so most acquires and releases do not touch the shared lists. Virtual
+ * threads always use the shared lists, as a buffer kept by one would be lost when it ends.
+ *
+ * In debug mode every buffer handed out is tracked until it is released. A buffer released twice, or
+ * one that did not come from the pool, is logged and not taken back, and buffers held for longer than
+ * LEAK_MILLIS are logged with where they were acquired.
+ */
+public final class BufferPool {
+  // The size classes, a request is served from the smallest class it fits.
+  public static final int[] SIZES = { 4096, 16384, 65536 };
+  public static final int SLAB_SIZE = 1024 * 1024;
+  // Buffers of each class a thread may keep to itself. A worker serves one connection at a time, so one
+  // is enough for it to never touch the shared lists once it has served a connection.
+  private static final int THREAD_CACHE = 1;
+  // In debug mode, a buffer held for longer than this is reported as a possible leak.
+  public static final long LEAK_MILLIS = 60 * 1000;
+
+  private static final SizeClass[] classes = new SizeClass[SIZES.length];
+  private static final ThreadLocal<ByteBuffer[][]> threadCaches = new ThreadLocal<ByteBuffer[][]>();
+  private static long maxBytes = 16 * 1024 * 1024;
+  private static final AtomicInteger slabs = new AtomicInteger();
+  private static final LongAdder acquired = new LongAdder();
+  private static final LongAdder released = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static final LongAdder dropped = new LongAdder();
+
+  // The buffers handed out and not yet released, only kept in debug mode. Buffers compare by their
+  // contents, so they are looked up by identity.
+  private static boolean debug = false;
+  private static final IdentityHashMap<ByteBuffer, Lease> leases = new IdentityHashMap<ByteBuffer, Lease>();
+  // Every connection's thread acquires and releases buffers and an IdentityHashMap is not safe to share,
+  // a single lock is enough as the map is only kept while debugging.
+  private static final ReentrantLock leaseLock = new ReentrantLock();
+  private static final LongAdder badReleases = new LongAdder();
+
+  static {
+    for (int i = 0; i < SIZES.length; i++) {
+      classes[i] = new SizeClass(SIZES[i]);
+    }
+  }
+
+  private BufferPool() {
+  }
+
+  /**
+   * The free buffers of one size.
+   */
+  private static final class SizeClass {
+    final int size;
+    final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    // Buffers on the free list, kept no higher than the number cut from slabs.
+    final AtomicInteger freeCount = new AtomicInteger();
+    final AtomicInteger carved = new AtomicInteger();
+    final LongAdder acquired = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final ReentrantLock carveLock = new ReentrantLock();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+  }
+
+  /**
+   * A buffer handed out in debug mode.
+   */
+  private static final class Lease {
+    final long time = System.currentTimeMillis();
+    final Throwable acquiredAt = new Throwable("Acquired on " + Thread.currentThread().getName());
+    boolean reported = false;
+  }
+
+  /**
+   * Sets the pool up, called once from main before any connection is accepted.
+   * @param bytes The most memory the slabs may take up.
+   * @param debugMode True to track every buffer handed out and report leaks.
+   */
+  public static void configure(long bytes, boolean debugMode) {
+    maxBytes = bytes;
+    debug = debugMode;
+    if (debug) {
+      Thread reporter = new Thread(BufferPool::reportLeaks, "bws-buffer-leaks");
+      reporter.setDaemon(true);
+      reporter.start();
+    }
+  }
+
+  /**
+   * Lets the calling thread keep released buffers of each class for its next acquires. Only for
+   * threads that last as long as the server.
+   */
+  public static void cacheOnThisThread() {
+    threadCaches.set(new ByteBuffer[SIZES.length][THREAD_CACHE]);
+  }
+
+  /**
+   * Gets a cleared buffer with room for at least the given number of bytes, which must be given back
+   * with release.
+   * @param size The bytes needed, above the largest class the buffer is allocated on its own.
+   * @return The buffer, direct and with its position at 0 and its limit at its capacity.
+   */
+  public static ByteBuffer acquire(int size) {
+    acquired.increment();
+    int index = classOf(size);
+    ByteBuffer buffer;
+    if (index < 0) {
+      misses.increment();
+      buffer = ByteBuffer.allocateDirect(size);
+    } else {
+      SizeClass sc = classes[index];
+      sc.acquired.increment();
+      buffer = fromThreadCache(index);
+      if (buffer == null) {
+        buffer = fromFreeList(sc);
+      }
+      if (buffer == null) {
+        sc.misses.increment();
+        misses.increment();
+        buffer = ByteBuffer.allocateDirect(sc.size);
+      }
+      buffer.clear();
+    }
+    if (debug) {
+      leaseLock.lock();
+      try {
+        leases.put(buffer, new Lease());
+      } finally {
+        leaseLock.unlock();
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back to the pool, it must not be used afterwards.
+   * @param buffer A buffer from acquire.
+   */
+  public static void release(ByteBuffer buffer) {
+    if (debug) {
+      Lease lease;
+      leaseLock.lock();
+      try {
+        lease = leases.remove(buffer);
+      } finally {
+        leaseLock.unlock();
+      }
+      if (lease == null) {
+        // Taking it back would hand the same buffer to two connections.
+        badReleases.increment();
+        System.out.println("ERROR: A buffer was released twice or did not come from the pool.");
+        new Throwable("Released on " + Thread.currentThread().getName()).printStackTrace(System.out);
+        return;
+      }
+    }
+    released.increment();
+    int index = classOf(buffer.capacity());
+    if (index < 0 || classes[index].size != buffer.capacity()) {
+      // Allocated on its own for a size above the largest class.
+      dropped.increment();
+      return;
+    }
+    if (toThreadCache(index, buffer)) {
+      return;
+    }
+    SizeClass sc = classes[index];
+    // Buffers allocated on a miss may come back while the ones cut from slabs are still out, keeping no
+    // more than were cut stops them adding up beyond the limit.
+    if (sc.freeCount.incrementAndGet() > sc.carved.get()) {
+      sc.freeCount.decrementAndGet();
+      dropped.increment();
+      return;
+    }
+    sc.free.offer(buffer);
+  }
+
+  private static int classOf(int size) {
+    for (int i = 0; i < SIZES.length; i++) {
+      if (size <= SIZES[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static ByteBuffer fromThreadCache(int index) {
+    ByteBuffer[][] cache = threadCaches.get();
+    if (cache == null) {
+      return null;
+    }
+    ByteBuffer[] slots = cache[index];
+    for (int i = slots.length - 1; i >= 0; i--) {
+      if (slots[i] != null) {
+        ByteBuffer buffer = slots[i];
+        slots[i] = null;
+        return buffer;
+      }
+    }
+    return null;
+  }
+
+  private static boolean toThreadCache(int index, ByteBuffer buffer) {
+    ByteBuffer[][] cache = threadCaches.get();
+    if (cache == null) {
+      return false;
+    }
+    ByteBuffer[] slots = cache[index];
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] == null) {
+        slots[i] = buffer;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Takes a buffer off the shared free list, cutting a new slab into buffers of the class when the list
+   * is empty and the pool is not at its limit.
+   * @return The buffer, or null on a miss.
+   */
+  private static ByteBuffer fromFreeList(SizeClass sc) {
+    ByteBuffer buffer = poll(sc);
+    if (buffer != null) {
+      return buffer;
+    }
+    sc.carveLock.lock();
+    try {
+      // Another thread may have cut a slab while this one waited.
+      buffer = poll(sc);
+      if (buffer != null) {
+        return buffer;
+      }
+      while (true) {
+        int n = slabs.get();
+        if ((long) (n + 1) * SLAB_SIZE > maxBytes) {
+          return null;
+        }
+        if (slabs.compareAndSet(n, n + 1)) {
+          break;
+        }
+      }
+      ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+      int count = SLAB_SIZE / sc.size;
+      // The first slice is handed out, the rest go on the free list.
+      sc.carved.addAndGet(count);
+      for (int i = 0; i < count; i++) {
+        slab.limit(i * sc.size + sc.size).position(i * sc.size);
+        ByteBuffer slice = slab.slice();
+        if (i == 0) {
+          buffer = slice;
+        } else {
+          sc.freeCount.incrementAndGet();
+          sc.free.offer(slice);
+        }
+      }
+      return buffer;
+    } finally {
+      sc.carveLock.unlock();
+    }
+  }
+
+  private static ByteBuffer poll(SizeClass sc) {
+    ByteBuffer buffer = sc.free.poll();
+    if (buffer != null) {
+      sc.freeCount.decrementAndGet();
+    }
+    return buffer;
+  }
+
+  /**
+   * Logs the buffers held for longer than LEAK_MILLIS once each, runs on its own thread in debug mode.
+   */
+  private static void reportLeaks() {
+    while (true) {
+      try {
+        Thread.sleep(LEAK_MILLIS / 4);
+      } catch (InterruptedException ie) {
+        return;
+      }
+      List<Lease> old = new ArrayList<Lease>();
+      long now = System.currentTimeMillis();
+      leaseLock.lock();
+      try {
+        for (Lease lease : leases.values()) {
+          if (!lease.reported && now - lease.time > LEAK_MILLIS) {
+            lease.reported = true;
+            old.add(lease);
+          }
+        }
+      } finally {
+        leaseLock.unlock();
+      }
+      for (Lease lease : old) {
+        System.out.println("WARNING: A buffer has been held for " + (now - lease.time) + "ms and may have leaked.");
+        lease.acquiredAt.printStackTrace(System.out);
+      }
+    }
+  }
+
+  /**
+   * @return The counters for the status page. Buffers kept by threads count as in use.
+   */
+  public static String status() {
+    long out = acquired.sum() - released.sum();
+    String report = "buffers.slabs: " + slabs.get() + "\r\n"
+      + "buffers.slabs.max: " + maxBytes / SLAB_SIZE + "\r\n"
+      + "buffers.acquired: " + acquired.sum() + "\r\n"
+      + "buffers.outstanding: " + out + "\r\n"
+      + "buffers.misses: " + misses.sum() + "\r\n"
+      + "buffers.dropped: " + dropped.sum() + "\r\n";
+    for (SizeClass sc : classes) {
+      report += "buffers." + sc.size + ".pooled: " + sc.carved.get() + "\r\n"
+        + "buffers." + sc.size + ".free: " + sc.freeCount.get() + "\r\n"
+        + "buffers." + sc.size + ".acquired: " + sc.acquired.sum() + "\r\n"
+        + "buffers." + sc.size + ".misses: " + sc.misses.sum() + "\r\n";
+    }
+    if (debug) {
+      leaseLock.lock();
+      try {
+        report += "buffers.leases: " + leases.size() + "\r\n";
+      } finally {
+        leaseLock.unlock();
+      }
+      report += "buffers.bad.releases: " + badReleases.sum() + "\r\n";
+    }
+    return report;
+  }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+/**
+ * Parses the Range option of a GET request, ie 'bytes=0-499', 'bytes=500-', 'bytes=-500' or several of
+ * them separated by commas.
+ */
+public final class ByteRanges {
+  // More ranges than this are answered with the whole file, so a request cannot ask for one file
+  // thousands of times over in a single response.
+  public static final int MAX_RANGES = 16;
+
+  private ByteRanges() {
+  }
+
+  /**
+   * Works out which parts of a file a Range option asks for.
+   * @param range The value of the Range option.
+   * @param length The length of the file.
+   * @return The offset and length of each satisfiable range in pairs, an empty array if none of them can
+   * be satisfied, or null if the option is not valid and should be ignored.
+   */
+  public static long[] parse(String range, long length) {
+    if (!range.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    String[] specs = range.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    long[] ranges = new long[specs.length * 2];
+    int count = 0;
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          // A suffix range, the final n bytes.
+          long n = Long.parseLong(spec.substring(1));
+          if (n < 0) {
+            return null;
+          }
+          if (n == 0 || length == 0) {
+            continue;
+          }
+          first = Math.max(0, length - n);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+          if (first < 0 || last < first) {
+            return null;
+          }
+          if (first >= length) {
+            continue;
+          }
+          last = Math.min(last, length - 1);
+        }
+      } catch (NumberFormatException nf) {
+        return null;
+      }
+      ranges[count++] = first;
+      ranges[count++] = last - first + 1;
+    }
+    return Arrays.copyOf(ranges, count);
+  }
+}
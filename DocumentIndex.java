@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * A snapshot of every file under PUBLIC_DIR, made by walking the directory once, so finding the file for
+ * a request is a walk down a tree of hash maps instead of stat calls on the disk. Each directory knows
+ * which of the DEFAULT_FILES it resolves to, so a request for a directory does not probe for each of
+ * them in turn. Resources that are not in the snapshot are not found without touching the disk at all.
+ *
+ * Each file also knows its gzip sidecar when it has one that is up to date, and the lengths and times
+ * of both, so the entry for a file found here is made without a single stat call.
+ *
+ * A snapshot never changes once it is built. When the FileWatcher sees the directory change it builds
+ * a new one and swaps it in whole, so a request sees either the old tree or the new one and never a
+ * tree half way through being updated.
+ */
+public final class DocumentIndex {
+  /**
+   * A file or directory in the snapshot.
+   */
+  public static final class Node {
+    public final File file;
+    public final long length;
+    public final long lastModified;
+    // The MIME type of a file, null for a directory.
+    public final String contentType;
+    // The file's gzip sidecar if it has one no older than itself, otherwise null.
+    public final Node gzip;
+    // The entries of a directory by name, null for a file.
+    private final HashMap<String, Node> children;
+    // The default file a directory resolves to, or null if it has none.
+    private final Node defaultFile;
+
+    private Node(File file, BasicFileAttributes attrs) {
+      this.file = file;
+      this.length = attrs.size();
+      this.lastModified = attrs.lastModifiedTime().toMillis();
+      this.contentType = RequestHandler.getContentType(file);
+      this.gzip = null;
+      this.children = null;
+      this.defaultFile = null;
+    }
+
+    private Node(Node file, Node gzip) {
+      this.file = file.file;
+      this.length = file.length;
+      this.lastModified = file.lastModified;
+      this.contentType = file.contentType;
+      this.gzip = gzip;
+      this.children = null;
+      this.defaultFile = null;
+    }
+
+    private Node(File file, BasicFileAttributes attrs, HashMap<String, Node> children) {
+      this.file = file;
+      this.length = 0;
+      this.lastModified = attrs.lastModifiedTime().toMillis();
+      this.contentType = null;
+      this.gzip = null;
+      this.children = children;
+      Node found = null;
+      for (String name : WebServer.DEFAULT_FILES) {
+        Node child = children.get(name);
+        if (child != null && child.children == null) {
+          found = child;
+          break;
+        }
+      }
+      this.defaultFile = found;
+    }
+
+    public boolean isDirectory() {
+      return children != null;
+    }
+  }
+
+  private final Node root;
+  private final int files;
+
+  private DocumentIndex(Node root, int files) {
+    this.root = root;
+    this.files = files;
+  }
+
+  /**
+   * Walks a directory and everything below it, following links as opening the files would. Files that
+   * cannot be read are left out, as are directories that cannot be listed.
+   * @param dir The directory, ie PUBLIC_DIR.
+   * @return The snapshot.
+   * @throws IOException If the directory itself cannot be walked.
+   */
+  public static DocumentIndex build(Path dir) throws IOException {
+    final Deque<HashMap<String, Node>> open = new ArrayDeque<HashMap<String, Node>>();
+    final Node[] root = new Node[1];
+    final int[] files = new int[1];
+    Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+        open.push(new HashMap<String, Node>());
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && Files.isReadable(file)) {
+          open.peek().put(file.getFileName().toString(), new Node(file.toFile(), attrs));
+          files[0]++;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException io) {
+        // Unreadable directories and links that loop back on themselves are left out.
+        WebServer.logln("Cannot index " + file + ": " + io.getMessage());
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException io) throws IOException {
+        HashMap<String, Node> children = open.pop();
+        linkSidecars(children);
+        Node node = new Node(d.toFile(), Files.readAttributes(d, BasicFileAttributes.class), children);
+        if (open.isEmpty()) {
+          root[0] = node;
+        } else {
+          open.peek().put(d.getFileName().toString(), node);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    if (root[0] == null) {
+      throw new IOException(dir + " is not a directory.");
+    }
+    return new DocumentIndex(root[0], files[0]);
+  }
+
+  /**
+   * Gives each file in a directory its gzip sidecar, ie 'style.css.gz' for 'style.css'. A sidecar older
+   * than its file is out of date and left out, as the server would not send it.
+   * @param children The entries of the directory, replaced by ones that know their sidecars.
+   */
+  private static void linkSidecars(HashMap<String, Node> children) {
+    for (Map.Entry<String, Node> e : children.entrySet()) {
+      Node file = e.getValue();
+      if (file.children != null || e.getKey().endsWith(Precompress.SUFFIX)) {
+        continue;
+      }
+      Node gz = children.get(e.getKey() + Precompress.SUFFIX);
+      if (gz != null && gz.children == null && gz.lastModified >= file.lastModified) {
+        e.setValue(new Node(file, gz));
+      }
+    }
+  }
+
+  /**
+   * Finds the file a resource resolves to, the default file when it names a directory. Empty and '.'
+   * parts of the path are skipped as the file system would, '..' is never in the tree so it is not
+   * found, which also keeps requests inside PUBLIC_DIR.
+   * @param resource The requested resource, ie '/style.css' or '/docs/'.
+   * @return The file, or null if the resource is not found.
+   */
+  public Node lookup(String resource) {
+    Node node = root;
+    int start = 0;
+    int length = resource.length();
+    while (start < length) {
+      int end = resource.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start && !(end - start == 1 && resource.charAt(start) == '.')) {
+        if (node.children == null) {
+          return null;
+        }
+        node = node.children.get(resource.substring(start, end));
+        if (node == null) {
+          return null;
+        }
+      }
+      start = end + 1;
+    }
+    return node.children != null ? node.defaultFile : node;
+  }
+
+  /**
+   * @return The number of files in the snapshot.
+   */
+  public int size() {
+    return files;
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * The error responses the server sends, rendered once when the class loads. Responses hold nothing that
+ * changes between requests apart from the Date and Connection options, which are filled in as the header
+ * is written, so every request that gets an error shares the same few Response objects.
+ */
+public final class ErrorPage {
+  public static final ErrorPage BAD_REQUEST = new ErrorPage(Response.BAD_REQUEST, "", "<h1>Bad Request</h1>\r\n");
+  public static final ErrorPage NOT_FOUND = new ErrorPage(Response.NOT_FOUND, "", "<h1>Page Not Found</h1>\r\n");
+  public static final ErrorPage NOT_IMPLEMENTED =
+      new ErrorPage(Response.NOT_IMPLEMENTED, "", "<h1>Not Implemented</h1>\r\n");
+  public static final ErrorPage SERVICE_UNAVAILABLE =
+      new ErrorPage(Response.SERVICE_UNAVAILABLE, "Retry-After: 1\r\n", "<h1>Service Unavailable</h1>\r\n");
+
+  // Indexed by responseIndex, one for each combination of HEAD or not and keep-alive or not.
+  private final Response[] responses = new Response[4];
+
+  /**
+   * Renders the responses for one error.
+   * @param statusLine The status line, ie Response.NOT_FOUND.
+   * @param extraOptions Any option lines particular to this error, each ending in a line end.
+   * @param message The html sent as the body.
+   */
+  private ErrorPage(byte[] statusLine, String extraOptions, String message) {
+    byte[] body = message.getBytes();
+    byte[] options = ("Server: bws\r\n"
+        + extraOptions
+        + "Content-Length: " + body.length + "\r\n"
+        + "Content-Type: text/html\r\n"
+        + "\r\n").getBytes();
+    for (int head = 0; head < 2; head++) {
+      for (int keepAlive = 0; keepAlive < 2; keepAlive++) {
+        responses[head * 2 + keepAlive] = new Response(statusLine, options, head == 1 ? null : body, keepAlive == 1);
+      }
+    }
+  }
+
+  /**
+   * Gets the response for this error.
+   * @param head True if the request was a HEAD request, which gets the header without the body.
+   * @param keepAlive True if the connection stays open after the response.
+   * @return The shared response.
+   */
+  public Response response(boolean head, boolean keepAlive) {
+    return responses[(head ? 2 : 0) + (keepAlive ? 1 : 0)];
+  }
+}
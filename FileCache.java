@@ -0,0 +1,579 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * An in memory cache of the files under PUBLIC_DIR, keyed by the requested resource. Each entry holds the
+ * file's response option lines already rendered and, for files smaller than the sendfile threshold, the
+ * body too, so a hit needs neither the stat calls of finding the file nor a read of it. The entries are
+ * kept within a byte budget by evicting the least recently used. Changed files are dropped by a
+ * FileWatcher, or when there is none by checking each file's modification time on every hit.
+ *
+ * A file with an up to date gzip sidecar next to it, ie 'style.css.gz' for 'style.css', has an entry
+ * for the sidecar too, which is sent instead to clients that accept gzip. The sidecars are made ahead of
+ * time by Precompress so no compressing happens while serving. Compressible files without one are
+ * compressed the first time a client accepts gzip, and the result is kept with the file's entry so each
+ * version of the file is only compressed once. Only small bodies already in memory are compressed while
+ * the request waits. Anything larger is handed to a background thread and sent as it is until the
+ * compressed version is ready, so a request never holds up an event loop compressing a big file.
+ */
+public class FileCache {
+  // Rough cost of an entry beyond its bytes, for the key, the File and the objects themselves.
+  private static final int ENTRY_OVERHEAD = 256;
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private final ReentrantLock lock = new ReentrantLock();
+  private long bytes = 0;
+  // Set once a FileWatcher keeps the entries up to date.
+  private volatile boolean watched = false;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong compressions = new AtomicLong();
+  private final AtomicLong compressionsQueued = new AtomicLong();
+  // Compresses the files too large to compress while a request waits, one at a time.
+  private final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "bws-gzip");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * A file ready to be sent.
+   */
+  public static class Entry {
+    public final File file;
+    public final Path path;
+    public final long lastModified;
+    public final long length;
+    public final String contentType;
+    public final String lastModifiedText;
+    public final String etag;
+    // The Last-Modified and ETag option lines.
+    public final String validators;
+    // The Vary option line for files that have a gzip version and for those versions, otherwise empty.
+    public final String vary;
+    // The Content-Encoding option line of a gzip version, empty for the file itself.
+    public final String encoding;
+    public final byte[] options;
+    public final byte[] notModifiedOptions;
+    public final byte[] body;
+    // The gzip encoded version of the file from its sidecar, or null if it has none.
+    public final Entry gzip;
+    // True if the file has no sidecar but is worth compressing while serving.
+    public final boolean compressible;
+    // True for a gzip version compressed while serving, whose body is only in memory.
+    public final boolean compressedInMemory;
+    // The version compressed while serving once it has been made, or this entry itself when compressing
+    // did not make it any smaller or the result does not fit in the cache. Only set by the cache.
+    private volatile Entry compressed = null;
+    // Set by the cache once the entry has been queued to be compressed in the background.
+    private boolean compressionQueued = false;
+
+    /**
+     * Stats the file and renders its response option lines, along with those of its gzip sidecar if it
+     * has one.
+     * @param file The file, which must exist.
+     * @param contentType The MIME type of the file.
+     * @param readBody True to read the file into memory.
+     * @param compress True if the file may be compressed while serving when it has no sidecar.
+     */
+    public Entry(File file, String contentType, boolean readBody, boolean compress) throws IOException {
+      this(file, contentType, file.lastModified(), file.length(), readBody, compress, null,
+          sidecar(file, contentType, readBody));
+    }
+
+    /**
+     * Makes the entry for a file found in the index from what the index knows about it and its sidecar,
+     * so nothing is asked of the file system unless the body is read.
+     * @param node The file in the index.
+     * @param readBody True to read the file into memory.
+     * @param compress True if the file may be compressed while serving when it has no sidecar.
+     * @return The entry.
+     * @throws IOException If the body cannot be read.
+     */
+    public static Entry indexed(DocumentIndex.Node node, boolean readBody, boolean compress) throws IOException {
+      Entry gzip = null;
+      if (node.gzip != null) {
+        try {
+          gzip = new Entry(node.gzip.file, node.contentType, node.gzip.lastModified, node.gzip.length,
+              readBody, false, "gzip", null);
+        } catch (IOException io) {
+          // The sidecar went away or cannot be read, the file itself can still be sent.
+        }
+      }
+      return new Entry(node.file, node.contentType, node.lastModified, node.length, readBody, compress, null, gzip);
+    }
+
+    /**
+     * @param lastModified The modification time of the file.
+     * @param length The length of the file, unless its body is read.
+     * @param contentEncoding The Content-Encoding of the file, or null if it is not encoded.
+     * @param gzip The entry for the file's gzip sidecar, or null.
+     */
+    private Entry(File file, String contentType, long lastModified, long length, boolean readBody,
+        boolean compress, String contentEncoding, Entry gzip) throws IOException {
+      this.file = file;
+      this.gzip = gzip;
+      this.path = file.toPath().toAbsolutePath().normalize();
+      this.contentType = contentType;
+      this.lastModified = lastModified;
+      this.lastModifiedText = HttpDate.format(lastModified);
+      this.body = readBody ? Files.readAllBytes(file.toPath()) : null;
+      // Take the length from what was read in case the file changed in between.
+      this.length = body != null ? body.length : length;
+      this.etag = etag();
+      this.compressible = compress && contentEncoding == null && gzip == null && Gzip.worthCompressing(contentType, length);
+      this.compressedInMemory = false;
+      // Caches between here and the client have to know the response depends on Accept-Encoding.
+      this.vary = contentEncoding != null || gzip != null || compressible ? "Vary: Accept-Encoding\r\n" : "";
+      this.encoding = contentEncoding != null ? "Content-Encoding: " + contentEncoding + "\r\n" : "";
+      this.validators = validators();
+      this.options = options();
+      this.notModifiedOptions = notModifiedOptions();
+    }
+
+    /**
+     * Makes the gzip version of a file from its compressed bytes. It shares the file's modification
+     * time, and its ETag is the file's with '-gzip' added so the two versions are told apart.
+     * @param identity The entry for the file itself.
+     * @param compressed The file compressed in the gzip format.
+     */
+    private Entry(Entry identity, byte[] compressed) {
+      this.file = identity.file;
+      this.gzip = null;
+      this.path = identity.path;
+      this.contentType = identity.contentType;
+      this.lastModified = identity.lastModified;
+      this.lastModifiedText = identity.lastModifiedText;
+      this.body = compressed;
+      this.length = compressed.length;
+      this.etag = identity.etag.substring(0, identity.etag.length() - 1) + "-gzip\"";
+      this.compressible = false;
+      this.compressedInMemory = true;
+      this.vary = "Vary: Accept-Encoding\r\n";
+      this.encoding = "Content-Encoding: gzip\r\n";
+      this.validators = validators();
+      this.options = options();
+      this.notModifiedOptions = notModifiedOptions();
+    }
+
+    private String validators() {
+      return "Last-Modified: " + lastModifiedText + "\r\n"
+          + "ETag: " + etag + "\r\n";
+    }
+
+    private byte[] options() {
+      return ("Server: bws\r\n"
+          + validators
+          + vary
+          + "Accept-Ranges: bytes\r\n"
+          + encoding
+          + "Content-Length: " + length + "\r\n"
+          + "Content-Type: " + contentType + "\r\n"
+          + "\r\n").getBytes();
+    }
+
+    private byte[] notModifiedOptions() {
+      return ("Server: bws\r\n"
+          + validators
+          + vary
+          + "\r\n").getBytes();
+    }
+
+    /**
+     * Gets the version of the file to send a client that accepts gzip. A small body in memory is
+     * compressed on the spot, the first client to ask pays for it. Anything larger is queued to be
+     * compressed in the background and this entry is sent until that is done. Either way it is done at
+     * most once for each version of the file while its entry stays in the cache.
+     * @param cache The cache holding the entry, which keeps the result and counts it in its budget.
+     * @param resource The resource the entry is cached under.
+     * @return The gzip version of the file, or this entry if it is not ready, does not get any smaller
+     * or does not fit in the cache.
+     * @throws IOException If the file cannot be read.
+     */
+    public Entry compressed(FileCache cache, String resource) throws IOException {
+      Entry gzipped = compressed;
+      if (gzipped != null) {
+        return gzipped;
+      }
+      if (body == null || length > Gzip.INLINE_SIZE) {
+        cache.compressLater(resource, this);
+        return this;
+      }
+      gzipped = compress();
+      cache.addCompressed(resource, this, gzipped);
+      return gzipped;
+    }
+
+    /**
+     * @return The gzip version of the file, or this entry if compressing does not make it smaller.
+     */
+    private Entry compress() throws IOException {
+      byte[] bytes;
+      if (body != null) {
+        bytes = Gzip.compress(new ByteArrayInputStream(body), length);
+      } else {
+        try (InputStream in = Files.newInputStream(path)) {
+          bytes = Gzip.compress(in, length);
+        }
+      }
+      // Remembered either way, so a file that does not compress is only tried once.
+      return bytes.length < length ? new Entry(this, bytes) : this;
+    }
+
+    /**
+     * Makes the entry for a file's gzip sidecar. A sidecar older than the file is out of date and is
+     * not used, the file is sent as it is until Precompress is run again.
+     * @return The entry, or null if there is no sidecar that can be used.
+     */
+    private static Entry sidecar(File file, String contentType, boolean readBody) {
+      if (file.getName().endsWith(Precompress.SUFFIX)) {
+        return null;
+      }
+      File gz = new File(file.getPath() + Precompress.SUFFIX);
+      if (!gz.isFile() || !gz.canRead() || gz.lastModified() < file.lastModified()) {
+        return null;
+      }
+      try {
+        return new Entry(gz, contentType, gz.lastModified(), gz.length(), readBody, false, "gzip", null);
+      } catch (IOException io) {
+        // The sidecar went away or cannot be read, the file itself can still be sent.
+        return null;
+      }
+    }
+
+    /**
+     * @return True if the file or its sidecar has been modified since the entry was made.
+     */
+    boolean stale() {
+      return file.lastModified() != lastModified || (gzip != null && gzip.stale());
+    }
+
+    /**
+     * Makes a strong ETag for this version of the file. A body held in memory gets the length and a
+     * CRC32C of its contents, so the tag only changes when the contents do. A file sent from disk gets
+     * its length and modification time instead, as hashing it would mean reading all of it while the
+     * request waits, which on an event loop holds up every other connection on the loop.
+     */
+    private String etag() {
+      if (body != null) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+      }
+      return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Checks the conditions of a conditional GET against this version of the file. If-None-Match is
+     * used when the request has it, otherwise If-Modified-Since.
+     * @param ifNoneMatch The If-None-Match option or null.
+     * @param ifModifiedSince The If-Modified-Since option or null.
+     * @return True if the client's copy is current and gets a 304 Not Modified.
+     */
+    public boolean notModified(String ifNoneMatch, String ifModifiedSince) {
+      if (ifNoneMatch != null) {
+        for (String tag : ifNoneMatch.split(",")) {
+          tag = tag.trim();
+          // If-None-Match uses the weak comparison, so a weak tag matches too.
+          if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+          }
+          if (tag.equals("*") || tag.equals(etag)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (ifModifiedSince != null) {
+        // Clients usually send back the Last-Modified they were given, which needs no parsing.
+        if (ifModifiedSince.equals(lastModifiedText)) {
+          return true;
+        }
+        // A time in the future is not valid and is ignored.
+        long since = HttpDate.parse(ifModifiedSince);
+        return since >= 0 && since <= System.currentTimeMillis() && lastModified / 1000 <= since / 1000;
+      }
+      return false;
+    }
+
+    /**
+     * Checks the If-Range option of a range request, which only lets the range through when the
+     * client's copy is this exact version of the file.
+     * @param ifRange The If-Range option or null.
+     * @return True to send the ranges, false to send the whole file.
+     */
+    public boolean rangeCurrent(String ifRange) {
+      if (ifRange == null) {
+        return true;
+      }
+      ifRange = ifRange.trim();
+      if (ifRange.startsWith("\"")) {
+        // Only the strong comparison is allowed here, and weak tags never match.
+        return ifRange.equals(etag);
+      }
+      return !ifRange.startsWith("W/") && ifRange.equals(lastModifiedText);
+    }
+
+    int weight() {
+      Entry c = compressed;
+      return ENTRY_OVERHEAD + options.length + notModifiedOptions.length + (body != null ? body.length : 0)
+          + (gzip != null ? gzip.weight() : 0) + (c != null && c != this ? c.weight() : 0);
+    }
+  }
+
+  /**
+   * Creates an empty cache.
+   * @param maxBytes The budget for all the entries.
+   */
+  public FileCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Stops checking the files on each hit, as a watcher now drops the entries of changed files.
+   */
+  public void setWatched() {
+    watched = true;
+  }
+
+  /**
+   * Gets the entry for a resource as long as its file has not been modified since it was cached.
+   * @param resource The requested resource, ie '/style.css'.
+   * @return The entry or null on a miss.
+   */
+  public Entry get(String resource) {
+    Entry entry;
+    lock.lock();
+    try {
+      entry = entries.get(resource);
+    } finally {
+      lock.unlock();
+    }
+    if (entry != null && !watched && entry.stale()) {
+      remove(resource, entry);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * Adds an entry, evicting the least recently used entries to keep within the budget. Entries
+   * larger than the whole budget are not kept.
+   * @param resource The requested resource.
+   * @param entry The entry for the file it was resolved to.
+   */
+  public void put(String resource, Entry entry) {
+    int weight = entry.weight();
+    if (weight > maxBytes) {
+      return;
+    }
+    lock.lock();
+    try {
+      Entry old = entries.put(resource, entry);
+      if (old != null) {
+        bytes -= old.weight();
+      }
+      bytes += weight;
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        Entry e = eldest.next();
+        eldest.remove();
+        bytes -= e.weight();
+        evictions.incrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Keeps the compressed version of an entry with it, as long as the entry is still the cached one for
+   * the resource. Its bytes count against the budget like any other, which can evict older entries.
+   * @param resource The resource the entry is cached under.
+   * @param entry The entry for the file itself.
+   * @param compressed Its gzip version, or the entry itself if it does not compress.
+   */
+  void addCompressed(String resource, Entry entry, Entry compressed) {
+    lock.lock();
+    try {
+      // Checked under the lock, so an entry's weight only changes while it is counted in bytes.
+      if (entry.compressed != null) {
+        return;
+      }
+      if (entries.get(resource) != entry) {
+        // Evicted or dropped meanwhile, so not counted in bytes, but whoever still holds it can use it.
+        entry.compressed = compressed;
+        return;
+      }
+      int weight = compressed != entry ? compressed.weight() : 0;
+      if (entry.weight() + weight > maxBytes) {
+        // Sent as it is from now on, rather than compressed again for every request.
+        entry.compressed = entry;
+        return;
+      }
+      entry.compressed = compressed;
+      bytes += weight;
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        Entry e = eldest.next();
+        if (e == entry) {
+          continue;
+        }
+        eldest.remove();
+        bytes -= e.weight();
+        evictions.incrementAndGet();
+      }
+      compressions.incrementAndGet();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues an entry to be compressed in the background, unless it already has been.
+   * @param resource The resource the entry is cached under.
+   * @param entry The entry for the file itself.
+   */
+  void compressLater(final String resource, final Entry entry) {
+    lock.lock();
+    try {
+      if (entry.compressed != null || entry.compressionQueued) {
+        return;
+      }
+      entry.compressionQueued = true;
+    } finally {
+      lock.unlock();
+    }
+    compressionsQueued.incrementAndGet();
+    compressor.execute(new Runnable() {
+      public void run() {
+        Entry gzipped;
+        try {
+          gzipped = entry.compress();
+        } catch (IOException io) {
+          // Most likely changed or gone, in which case the watcher drops the entry anyway.
+          WebServer.logln("Failed to compress " + entry.file.getAbsolutePath());
+          gzipped = entry;
+        }
+        addCompressed(resource, entry, gzipped);
+      }
+    });
+  }
+
+  /**
+   * Drops the entries affected by a set of changed paths in one pass: those for the changed files, those
+   * for files inside changed directories, and those for a directory's default file when a default
+   * file in that directory changed, as the directory may now resolve to a different one. A changed gzip
+   * sidecar drops the entry of the file it belongs to, whether it was added, changed or removed.
+   * @param changed The absolute paths of the files and directories that changed.
+   * @return The number of entries dropped.
+   */
+  public int invalidate(Set<Path> changed) {
+    Set<Path> defaultDirs = new HashSet<Path>();
+    Set<Path> sidecarsOf = new HashSet<Path>();
+    for (Path path : changed) {
+      Path name = path.getFileName();
+      if (name != null && Arrays.asList(WebServer.DEFAULT_FILES).contains(name.toString())) {
+        defaultDirs.add(path.getParent());
+      }
+      if (name != null && name.toString().endsWith(Precompress.SUFFIX)) {
+        String n = name.toString();
+        sidecarsOf.add(path.resolveSibling(n.substring(0, n.length() - Precompress.SUFFIX.length())));
+      }
+    }
+    int dropped = 0;
+    lock.lock();
+    try {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry e = it.next();
+        if (affected(e.path, changed) || defaultDirs.contains(e.path.getParent()) || sidecarsOf.contains(e.path)) {
+          it.remove();
+          bytes -= e.weight();
+          dropped++;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    invalidations.addAndGet(dropped);
+    return dropped;
+  }
+
+  /**
+   * @return True if the path or any directory above it has changed.
+   */
+  private static boolean affected(Path path, Set<Path> changed) {
+    for (Path p = path; p != null; p = p.getParent()) {
+      if (changed.contains(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops every entry.
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      invalidations.addAndGet(entries.size());
+      entries.clear();
+      bytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an entry if it is still the one given.
+   */
+  private void remove(String resource, Entry entry) {
+    lock.lock();
+    try {
+      if (entries.remove(resource, entry)) {
+        bytes -= entry.weight();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The counters for the status page.
+   */
+  public String status() {
+    lock.lock();
+    try {
+      return "cache.entries: " + entries.size() + "\r\n"
+        + "cache.bytes: " + bytes + "\r\n"
+        + "cache.max_bytes: " + maxBytes + "\r\n"
+        + "cache.hits: " + hits.get() + "\r\n"
+        + "cache.misses: " + misses.get() + "\r\n"
+        + "cache.evictions: " + evictions.get() + "\r\n"
+        + "cache.invalidations: " + invalidations.get() + "\r\n"
+        + "cache.compressions: " + compressions.get() + "\r\n"
+        + "cache.compressions_queued: " + compressionsQueued.get() + "\r\n"
+        + "cache.watched: " + watched + "\r\n";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
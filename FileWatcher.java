@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the public directory and everything below it for changes and drops the cache entries of the
+ * files that changed, so the cache does not have to check each file on every request. When requests are
+ * resolved through a DocumentIndex it also builds a new one and swaps it in, otherwise it forgets the
+ * resources the NotFoundCache remembers as missing as they may now exist. Changes come in bursts when
+ * a site is deployed, so once one arrives the watcher keeps collecting until the directory has been quiet
+ * for a moment and then makes a single pass over the cache, and a single new index, for the whole burst.
+ */
+public class FileWatcher extends Thread {
+  // How long the directory must be quiet before a burst of changes is applied.
+  private static final long QUIET_MS = 100;
+  // The longest a burst is held back, so a directory that never goes quiet is still kept up to date.
+  private static final long MAX_DELAY_MS = 1000;
+
+  private final Path root;
+  private final FileCache cache;
+  private final NotFoundCache notFound;
+  private final boolean reindex;
+  private final WatchService watcher;
+  private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+
+  /**
+   * Registers every directory under root. The watching itself starts when the thread is started.
+   * @param root The directory to watch.
+   * @param cache The cache to invalidate, or null if there is none.
+   * @param notFound The missing resources to forget, or null if they are not remembered.
+   * @param reindex True to rebuild WebServer.index after each burst of changes.
+   * @throws IOException If the file system cannot be watched.
+   */
+  public FileWatcher(Path root, FileCache cache, NotFoundCache notFound, boolean reindex) throws IOException {
+    super("bws-file-watcher");
+    setDaemon(true);
+    this.root = root.toAbsolutePath().normalize();
+    this.cache = cache;
+    this.notFound = notFound;
+    this.reindex = reindex;
+    this.watcher = this.root.getFileSystem().newWatchService();
+    registerAll(this.root);
+  }
+
+  /**
+   * Registers a directory and all of the directories below it.
+   */
+  private void registerAll(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        dirs.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Set<Path> changed = new HashSet<Path>();
+        boolean overflow = collect(watcher.take(), changed);
+
+        // Keep gathering until the burst is over.
+        long deadline = System.currentTimeMillis() + MAX_DELAY_MS;
+        WatchKey key;
+        while (System.currentTimeMillis() < deadline
+            && (key = watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null) {
+          overflow |= collect(key, changed);
+        }
+
+        // The new index goes in first, so a request that misses the cache after the entries are dropped
+        // finds the files through the new tree.
+        if (reindex) {
+          try {
+            WebServer.index = DocumentIndex.build(root);
+          } catch (IOException io) {
+            // Keep serving from the old tree, the next change tries again.
+            WebServer.logln("ERROR: Cannot index " + root + ": " + io.getMessage());
+          }
+        }
+        if (notFound != null) {
+          // Any change could make a remembered resource exist, a new file or a new default file for a
+          // directory, and working out which is not worth it for a cache that refills itself.
+          notFound.clear();
+        }
+        if (cache == null) {
+          continue;
+        }
+        if (overflow) {
+          // Events were lost, so which files changed is not known.
+          WebServer.logln("File watcher overflowed, clearing the cache");
+          cache.clear();
+        } else {
+          int dropped = cache.invalidate(changed);
+          WebServer.logln(changed.size() + " files changed, " + dropped + " cache entries dropped");
+        }
+      }
+    } catch (InterruptedException ie) {
+      // Shutting down.
+    } catch (ClosedWatchServiceException cws) {
+      // Shutting down.
+    }
+  }
+
+  /**
+   * Adds the paths from one directory's events to the set of changes and resets its key. New
+   * directories are registered so changes inside them are seen too.
+   * @return True if the directory had more events than could be reported.
+   */
+  private boolean collect(WatchKey key, Set<Path> changed) {
+    Path dir = dirs.get(key);
+    boolean overflow = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+        overflow = true;
+        continue;
+      }
+      Path path = dir.resolve((Path) event.context());
+      changed.add(path);
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        try {
+          registerAll(path);
+        } catch (IOException io) {
+          WebServer.logln("ERROR: Cannot watch " + path);
+        }
+      }
+    }
+    if (!key.reset()) {
+      // The directory has gone.
+      dirs.remove(key);
+    }
+    return overflow;
+  }
+}
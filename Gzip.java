@@ -0,0 +1,120 @@
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses files into the gzip format while serving, for compressible files that have no sidecar.
+ * A Deflater holds tens of kilobytes of native memory and setting one up costs more than compressing a
+ * small file, so each one is kept with its buffers in a pool and reset between files rather than made
+ * for every file and left for the finalizer.
+ */
+public final class Gzip {
+  // Files larger than this are left for Precompress, compressing them while a client waits takes too long.
+  public static final long MAX_SIZE = 16L * 1024 * 1024;
+  // Bodies up to this size are compressed while the request waits, larger files in the background.
+  public static final int INLINE_SIZE = 65536;
+  // The level used while serving, where the first client waits for it to finish.
+  private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+  private static final int BUFFER_SIZE = 65536;
+  // The gzip header: magic number, deflate, no flags, no time, no extra flags, unknown OS.
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  // Compressors not in use, more than this are ended when they are given back.
+  private static final ArrayBlockingQueue<Gzip> pool =
+      new ArrayBlockingQueue<Gzip>(Runtime.getRuntime().availableProcessors());
+  private static final AtomicLong created = new AtomicLong();
+  private static final AtomicLong compressed = new AtomicLong();
+  private static final AtomicLong bytesIn = new AtomicLong();
+  private static final AtomicLong bytesOut = new AtomicLong();
+
+  // Raw deflate, the gzip header and trailer are written here.
+  private final Deflater deflater = new Deflater(LEVEL, true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] input = new byte[BUFFER_SIZE];
+  private final byte[] output = new byte[BUFFER_SIZE];
+
+  private Gzip() {
+    created.incrementAndGet();
+  }
+
+  /**
+   * Checks whether a file is worth compressing while serving.
+   * @param contentType The MIME type of the file.
+   * @param length The length of the file.
+   * @return True for compressible types between Precompress.MIN_SIZE and MAX_SIZE.
+   */
+  public static boolean worthCompressing(String contentType, long length) {
+    return length >= Precompress.MIN_SIZE && length <= MAX_SIZE && Precompress.compressible(contentType);
+  }
+
+  /**
+   * Compresses a file with a pooled compressor.
+   * @param in The contents of the file.
+   * @param length The length of the file, used to size the output.
+   * @return The file in the gzip format.
+   * @throws IOException If the file cannot be read.
+   */
+  public static byte[] compress(InputStream in, long length) throws IOException {
+    Gzip gzip = pool.poll();
+    if (gzip == null) {
+      gzip = new Gzip();
+    }
+    try {
+      byte[] bytes = gzip.deflate(in, length);
+      compressed.incrementAndGet();
+      bytesIn.addAndGet(length);
+      bytesOut.addAndGet(bytes.length);
+      return bytes;
+    } finally {
+      gzip.deflater.reset();
+      gzip.crc.reset();
+      if (!pool.offer(gzip)) {
+        gzip.deflater.end();
+      }
+    }
+  }
+
+  private byte[] deflate(InputStream in, long length) throws IOException {
+    // Text usually shrinks to a quarter or less, the stream grows if it does not.
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length / 4 + 64, MAX_SIZE));
+    out.write(HEADER);
+    long total = 0;
+    int n;
+    while ((n = in.read(input)) > 0) {
+      crc.update(input, 0, n);
+      total += n;
+      deflater.setInput(input, 0, n);
+      while (!deflater.needsInput()) {
+        out.write(output, 0, deflater.deflate(output));
+      }
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      out.write(output, 0, deflater.deflate(output));
+    }
+    // The trailer: the CRC32 and the length modulo 2^32 of the uncompressed bytes, little endian.
+    writeInt(out, crc.getValue());
+    writeInt(out, total);
+    return out.toByteArray();
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, long value) {
+    out.write((int) value);
+    out.write((int) (value >>> 8));
+    out.write((int) (value >>> 16));
+    out.write((int) (value >>> 24));
+  }
+
+  /**
+   * @return The counters for the status page.
+   */
+  public static String status() {
+    return "gzip.compressed: " + compressed.get() + "\r\n"
+      + "gzip.bytes_in: " + bytesIn.get() + "\r\n"
+      + "gzip.bytes_out: " + bytesOut.get() + "\r\n"
+      + "gzip.deflaters_created: " + created.get() + "\r\n"
+      + "gzip.deflaters_pooled: " + pool.size() + "\r\n";
+  }
+}
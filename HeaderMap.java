@@ -0,0 +1,142 @@
+import java.util.*;
+
+/**
+ * The header lines of a request indexed by name. The names the server looks at are given fixed ids so a
+ * lookup is an array access, the names are matched case insensitively against the raw header bytes once
+ * when the header is parsed, and each value only becomes a String the first time it is asked for.
+ */
+public class HeaderMap {
+  public static final int HOST = 0;
+  public static final int CONNECTION = 1;
+  public static final int USER_AGENT = 2;
+  public static final int ACCEPT = 3;
+  public static final int ACCEPT_ENCODING = 4;
+  public static final int IF_MODIFIED_SINCE = 5;
+  public static final int IF_NONE_MATCH = 6;
+  public static final int RANGE = 7;
+  public static final int IF_RANGE = 8;
+  public static final int CONTENT_LENGTH = 9;
+  public static final int TRANSFER_ENCODING = 10;
+  public static final int REFERER = 11;
+
+  /** The well-known header names in the order of their ids. */
+  public static final String[] NAMES = new String[] { "Host", "Connection", "User-Agent", "Accept", "Accept-Encoding",
+      "If-Modified-Since", "If-None-Match", "Range", "If-Range", "Content-Length", "Transfer-Encoding", "Referer" };
+
+  private static final byte[][] LOWER_NAMES = new byte[NAMES.length][];
+  private static final int TABLE_SIZE = 64;
+  private static final int[] TABLE = new int[TABLE_SIZE];
+
+  static {
+    Arrays.fill(TABLE, -1);
+    for (int id = 0; id < NAMES.length; id++) {
+      String lower = NAMES[id].toLowerCase(Locale.ROOT);
+      LOWER_NAMES[id] = lower.getBytes();
+      int slot = hash(LOWER_NAMES[id], 0, LOWER_NAMES[id].length) & (TABLE_SIZE - 1);
+      while (TABLE[slot] != -1) {
+        slot = (slot + 1) & (TABLE_SIZE - 1);
+      }
+      TABLE[slot] = id;
+    }
+  }
+
+  private byte[] buffer = null;
+  private final int[] valueStarts = new int[NAMES.length];
+  private final int[] valueEnds = new int[NAMES.length];
+  private final String[] values = new String[NAMES.length];
+
+  public HeaderMap() {
+    clear();
+  }
+
+  /**
+   * Forgets the headers of the previous request.
+   */
+  public void clear() {
+    Arrays.fill(valueStarts, -1);
+    Arrays.fill(values, null);
+    buffer = null;
+  }
+
+  /**
+   * Indexes one header line. Only the first line for each well-known name is kept, later
+   * duplicates are ignored.
+   * @param bytes The buffer holding the line.
+   * @param start The index of the first byte of the line.
+   * @param end The index just after the last byte of the line.
+   */
+  void add(byte[] bytes, int start, int end) {
+    buffer = bytes;
+    int colon = start;
+    while (colon < end && bytes[colon] != ':') colon++;
+    if (colon == end) {
+      return;
+    }
+    int id = lookup(bytes, start, colon);
+    if (id >= 0 && valueStarts[id] < 0) {
+      valueStarts[id] = trimStart(bytes, colon + 1, end);
+      valueEnds[id] = trimEnd(bytes, valueStarts[id], end);
+    }
+  }
+
+  /**
+   * Gets the value of a well-known header.
+   * @param id One of the header ids, ie HeaderMap.HOST.
+   * @return The value with the surrounding white space removed or null if the header was not sent.
+   */
+  public String get(int id) {
+    if (values[id] == null && valueStarts[id] >= 0) {
+      values[id] = new String(buffer, valueStarts[id], valueEnds[id] - valueStarts[id]);
+    }
+    return values[id];
+  }
+
+  /**
+   * @return True if the well-known header was sent.
+   */
+  public boolean contains(int id) {
+    return valueStarts[id] >= 0;
+  }
+
+  /**
+   * Finds the id of a header name held in a buffer.
+   * @return The id or -1 when it is not a well-known name.
+   */
+  private static int lookup(byte[] bytes, int start, int end) {
+    int slot = hash(bytes, start, end) & (TABLE_SIZE - 1);
+    while (TABLE[slot] != -1) {
+      byte[] candidate = LOWER_NAMES[TABLE[slot]];
+      if (candidate.length == end - start) {
+        int i = 0;
+        while (i < candidate.length && candidate[i] == lower(bytes[start + i])) i++;
+        if (i == candidate.length) {
+          return TABLE[slot];
+        }
+      }
+      slot = (slot + 1) & (TABLE_SIZE - 1);
+    }
+    return -1;
+  }
+
+  private static int hash(byte[] bytes, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + lower(bytes[i]);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static byte lower(byte b) {
+    return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+  }
+
+  private static int trimStart(byte[] bytes, int start, int end) {
+    while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) start++;
+    return start;
+  }
+
+  private static int trimEnd(byte[] bytes, int start, int end) {
+    while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) end--;
+    return end;
+  }
+}
@@ -0,0 +1,98 @@
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * A shared clock for the dates the server writes. The Date option of the responses only changes once
+ * a second, so it is rendered the first time it is asked for in each second and every other request in
+ * that second gets the same cached value.
+ */
+public final class HttpDate {
+  private static final DateTimeFormatter RFC_1123 =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+  private static final DateTimeFormatter LOG =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy HH:mm:ss", Locale.US).withZone(ZoneId.systemDefault());
+
+  private static volatile Second current = new Second(System.currentTimeMillis() / 1000);
+
+  private HttpDate() {
+  }
+
+  /**
+   * The dates rendered for one second.
+   */
+  private static final class Second {
+    final long second;
+    final String date;
+    final byte[] dateBytes;
+
+    Second(long second) {
+      Instant instant = Instant.ofEpochSecond(second);
+      this.second = second;
+      this.date = RFC_1123.format(instant);
+      this.dateBytes = date.getBytes();
+    }
+  }
+
+  /**
+   * Gets the dates for the current second, rendering them if the second has changed. Two threads may
+   * both render a new second, which is harmless as they produce the same values.
+   */
+  private static Second current() {
+    long second = System.currentTimeMillis() / 1000;
+    Second c = current;
+    if (c.second != second) {
+      c = new Second(second);
+      current = c;
+    }
+    return c;
+  }
+
+  /**
+   * @return The current time for the Date option, ie 'Sun, 15 Mar 2015 00:04:48 GMT'.
+   */
+  public static String now() {
+    return current().date;
+  }
+
+  /**
+   * @return The bytes of now(), shared so they must not be modified.
+   */
+  public static byte[] nowBytes() {
+    return current().dateBytes;
+  }
+
+  /**
+   * Parses a time in the format of the Date option, as sent back in If-Modified-Since.
+   * @param date The time, ie 'Sun, 15 Mar 2015 00:04:48 GMT'.
+   * @return The time in milliseconds since the epoch, or -1 if it is not in that format.
+   */
+  public static long parse(String date) {
+    try {
+      return Instant.from(RFC_1123.parse(date.trim())).toEpochMilli();
+    } catch (DateTimeParseException dtp) {
+      return -1;
+    }
+  }
+
+  /**
+   * Renders a given time for the access log, in the server's time zone. Not cached, the log writer keeps
+   * the result for the rest of the second.
+   * @param millis The time in milliseconds since the epoch.
+   * @return The time, ie '14/Mar/2015 00:04:48'.
+   */
+  public static String formatLog(long millis) {
+    return LOG.format(Instant.ofEpochMilli(millis));
+  }
+
+  /**
+   * Renders a given time for an option such as Last-Modified. Not cached, callers that send the same
+   * time repeatedly should keep the result.
+   * @param millis The time in milliseconds since the epoch.
+   * @return The time, ie 'Sun, 15 Mar 2015 00:04:48 GMT'.
+   */
+  public static String format(long millis) {
+    return RFC_1123.format(Instant.ofEpochMilli(millis));
+  }
+}
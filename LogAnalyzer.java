@@ -0,0 +1,367 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summarises a text access log: the status codes, the most requested paths and the busiest client
+ * addresses. The log is memory mapped in slices that end on line boundaries, so files of any size can
+ * be read without each slice going over the 2 GB a single mapping allows, and the slices are counted in
+ * parallel on a fork join pool. Counts are kept in maps keyed by a 64 bit hash of the path or address,
+ * which avoids making a String for every line, ie:
+ *   java LogAnalyzer access-log.txt
+ *   java LogAnalyzer -top 20 access-log.txt access-log-20150315-000448-123.txt
+ *
+ * Lines must be in the format AccessLog writes, '14/Mar/2015 00:04:48 - 127.0.0.1 "GET / HTTP/1.1" 200 OK',
+ * compressed segments have to be uncompressed first. Lines that do not match are counted as malformed.
+ */
+public class LogAnalyzer {
+  public static final String USAGE = "Usage: java LogAnalyzer [options] file...\n"
+      + "  -top n         How many paths and addresses to list (default 10)\n"
+      + "  -threads n     Threads counting the slices (default one per core)";
+
+  // Slices are about this size, each one is mapped and counted by a single task.
+  private static final long SLICE_SIZE = 64L * 1024 * 1024;
+  // The timestamp at the start of every line, ie '14/Mar/2015 00:04:48 - '.
+  private static final int TIMESTAMP_LENGTH = 23;
+
+  public static void main(String[] args) throws Exception {
+    int top = 10;
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<String> files = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-top") && i + 1 < args.length) {
+          top = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-threads") && i + 1 < args.length) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].startsWith("-")) {
+          throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+        } else {
+          files.add(args[i]);
+        }
+      }
+      if (files.isEmpty()) {
+        throw new IllegalArgumentException("No log files given.");
+      }
+    } catch (IllegalArgumentException ia) {
+      // Also catches a number that does not parse.
+      System.out.println(ia.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+
+    long started = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    Counts total = new Counts();
+    long bytes = 0;
+    for (String name : files) {
+      try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+        long[] bounds = slices(channel);
+        total.add(pool.invoke(new Count(channel, bounds, 0, bounds.length - 1)));
+        bytes += channel.size();
+      }
+    }
+    pool.shutdown();
+    long elapsed = (System.nanoTime() - started) / 1000000;
+
+    System.out.println("Lines: " + total.lines + ", malformed: " + total.malformed
+        + " (" + bytes / (1024 * 1024) + " MB in " + elapsed + "ms)");
+    System.out.println();
+    System.out.println("Status codes:");
+    for (int code = 0; code < total.statuses.length; code++) {
+      if (total.statuses[code] > 0) {
+        System.out.printf("  %3d %12d%n", code, total.statuses[code]);
+      }
+    }
+    System.out.println();
+    System.out.println("Top paths:");
+    total.paths.printTop(top);
+    System.out.println();
+    System.out.println("Top addresses:");
+    total.addresses.printTop(top);
+  }
+
+  /**
+   * Splits a file into slices of about SLICE_SIZE that each end just after a line end.
+   * @return The offsets where the slices start, followed by the file size.
+   */
+  private static long[] slices(FileChannel channel) throws IOException {
+    long size = channel.size();
+    List<Long> bounds = new ArrayList<Long>();
+    bounds.add(0L);
+    long position = SLICE_SIZE;
+    while (position < size) {
+      // Look for the end of the line the rough boundary falls in, mapping a little more each time.
+      long end = -1;
+      for (long window = 65536; end < 0 && position < size; window *= 2) {
+        long length = Math.min(window, size - position);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        for (int i = 0; i < length; i++) {
+          if (map.get(i) == '\n') {
+            end = position + i + 1;
+            break;
+          }
+        }
+        if (end < 0 && length < window) {
+          break;
+        }
+      }
+      if (end < 0 || end >= size) {
+        break;
+      }
+      bounds.add(end);
+      position = end + SLICE_SIZE;
+    }
+    bounds.add(size);
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Counts a run of slices, splitting it in half until there is one slice per task. Tasks are never
+   * serialized, they only hold a channel that could not be.
+   */
+  @SuppressWarnings("serial")
+  private static class Count extends RecursiveTask<Counts> {
+    private final FileChannel channel;
+    private final long[] bounds;
+    private final int first;
+    private final int last;
+
+    /**
+     * @param first The index in bounds of the first slice's start.
+     * @param last The index in bounds of the last slice's end.
+     */
+    Count(FileChannel channel, long[] bounds, int first, int last) {
+      this.channel = channel;
+      this.bounds = bounds;
+      this.first = first;
+      this.last = last;
+    }
+
+    @Override
+    protected Counts compute() {
+      if (last - first > 1) {
+        int middle = (first + last) / 2;
+        Count left = new Count(channel, bounds, first, middle);
+        left.fork();
+        Counts counts = new Count(channel, bounds, middle, last).compute();
+        counts.add(left.join());
+        return counts;
+      }
+      Counts counts = new Counts();
+      long start = bounds[first];
+      long length = bounds[last] - start;
+      if (length == 0) {
+        return counts;
+      }
+      try {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+          if (map.get(i) == '\n') {
+            counts.line(map, lineStart, i);
+            lineStart = i + 1;
+          }
+        }
+        if (lineStart < length) {
+          counts.line(map, lineStart, (int) length);
+        }
+      } catch (IOException io) {
+        throw new UncheckedIOException(io);
+      }
+      return counts;
+    }
+  }
+
+  /**
+   * The counts for part of a log.
+   */
+  private static class Counts {
+    long lines = 0;
+    long malformed = 0;
+    final long[] statuses = new long[1000];
+    final HashCounter paths = new HashCounter();
+    final HashCounter addresses = new HashCounter();
+
+    /**
+     * Counts one line, from start up to end which is the line end or the end of the slice.
+     */
+    void line(MappedByteBuffer map, int start, int end) {
+      if (end > start && map.get(end - 1) == '\r') {
+        end--;
+      }
+      if (end == start) {
+        return;
+      }
+      lines++;
+      if (end - start < TIMESTAMP_LENGTH + 8) {
+        malformed++;
+        return;
+      }
+      // The address runs from after the timestamp up to the space before the quoted request line.
+      int address = start + TIMESTAMP_LENGTH;
+      int addressEnd = indexOf(map, address, end, (byte) ' ');
+      // The status code follows the last quote, as a request line could itself contain one.
+      int quote = lastIndexOf(map, start, end, (byte) '"');
+      if (addressEnd < 0 || addressEnd + 1 >= end || map.get(addressEnd + 1) != '"' || quote <= addressEnd + 1 || quote + 5 > end
+          || map.get(start + TIMESTAMP_LENGTH - 2) != '-') {
+        malformed++;
+        return;
+      }
+      int status = 0;
+      for (int i = quote + 2; i < quote + 5; i++) {
+        int digit = map.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          malformed++;
+          return;
+        }
+        status = status * 10 + digit;
+      }
+      statuses[status]++;
+      addresses.add(map, address, addressEnd);
+
+      // The path is the second word of the request line, lines that could not be parsed have none.
+      int method = addressEnd + 2;
+      int path = indexOf(map, method, quote, (byte) ' ');
+      if (path >= 0) {
+        int pathEnd = indexOf(map, path + 1, quote, (byte) ' ');
+        paths.add(map, path + 1, pathEnd >= 0 ? pathEnd : quote);
+      }
+    }
+
+    void add(Counts other) {
+      lines += other.lines;
+      malformed += other.malformed;
+      for (int i = 0; i < statuses.length; i++) {
+        statuses[i] += other.statuses[i];
+      }
+      paths.add(other.paths);
+      addresses.add(other.addresses);
+    }
+  }
+
+  private static int indexOf(MappedByteBuffer map, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (map.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(MappedByteBuffer map, int from, int to, byte b) {
+    for (int i = to - 1; i >= from; i--) {
+      if (map.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Counts byte strings by a 64 bit FNV-1a hash of their bytes, in an open addressed table of primitive
+   * longs. The text is only copied out of the log the first time each hash is seen, for the report.
+   */
+  private static class HashCounter {
+    private long[] keys = new long[1024];
+    private long[] counts = new long[1024];
+    private String[] labels = new String[1024];
+    private int size = 0;
+
+    void add(MappedByteBuffer map, int start, int end) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = start; i < end; i++) {
+        hash ^= map.get(i) & 0xFF;
+        hash *= 0x100000001b3L;
+      }
+      int slot = find(hash);
+      if (labels[slot] == null) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+          bytes[i] = map.get(start + i);
+        }
+        insert(slot, hash, new String(bytes, StandardCharsets.UTF_8), 1);
+      } else {
+        counts[slot]++;
+      }
+    }
+
+    void add(HashCounter other) {
+      for (int i = 0; i < other.keys.length; i++) {
+        if (other.labels[i] != null) {
+          int slot = find(other.keys[i]);
+          if (labels[slot] == null) {
+            insert(slot, other.keys[i], other.labels[i], other.counts[i]);
+          } else {
+            counts[slot] += other.counts[i];
+          }
+        }
+      }
+    }
+
+    /**
+     * @return The slot holding the hash, or the empty slot where it belongs.
+     */
+    private int find(long hash) {
+      int mask = keys.length - 1;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while (labels[slot] != null && keys[slot] != hash) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void insert(int slot, long hash, String label, long count) {
+      keys[slot] = hash;
+      labels[slot] = label;
+      counts[slot] = count;
+      if (++size * 2 > keys.length) {
+        grow();
+      }
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      long[] oldCounts = counts;
+      String[] oldLabels = labels;
+      keys = new long[oldKeys.length * 2];
+      counts = new long[oldKeys.length * 2];
+      labels = new String[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldLabels[i] != null) {
+          int slot = find(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          labels[slot] = oldLabels[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+
+    void printTop(int n) {
+      Integer[] order = new Integer[size];
+      int k = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (labels[i] != null) {
+          order[k++] = i;
+        }
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Long.compare(counts[b], counts[a]);
+        }
+      });
+      for (int i = 0; i < Math.min(n, order.length); i++) {
+        System.out.printf("  %12d  %s%n", counts[order[i]], labels[order[i]]);
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Turns binary access logs back into the text format, optionally keeping only the requests received in
+ * a range of times. Files are read as a stream so logs of any size can be converted, and rotated
+ * segments ending in .gz are uncompressed on the way, ie:
+ *   java LogConverter access-log-20150315-000448-123.bin.gz access-log.bin
+ *   java LogConverter -from 2015-03-15T00:00:00 -to 2015-03-16T00:00:00 access-log.bin
+ *
+ * The binary format is a header of the bytes 'BWSL' and the format version, followed by records that
+ * each start with their type:
+ *   DEFINE   varint id, varint length, UTF-8 bytes: names a method, path or unparsable request line.
+ *   REQUEST  zigzag varint milliseconds since the previous request (or the epoch for the first),
+ *            one byte address length and the 4 or 16 address bytes, two byte status code,
+ *            varint method id (0 when the request line could not be parsed or its version is not 1.0
+ *            or 1.1), varint path id (the whole request line when the method id is 0), one byte HTTP
+ *            version (0 for 1.0, 1 for 1.1),
+ *            varint response length.
+ *   RESET    forget the ids and the previous time, as if the file started again.
+ * Varints are 7 bits per byte, low bits first, with the top bit set on every byte but the last.
+ */
+public class LogConverter {
+  public static final String USAGE = "Usage: java LogConverter [options] file...\n"
+      + "  -from time     Only requests received at or after the time, ie 2015-03-15T00:04:48\n"
+      + "  -to time       Only requests received before the time";
+
+  public static final byte[] MAGIC = { 'B', 'W', 'S', 'L' };
+  public static final byte FORMAT_VERSION = 1;
+  public static final byte DEFINE = 1;
+  public static final byte REQUEST = 2;
+  public static final byte RESET = 3;
+
+  public static void main(String[] args) throws IOException {
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    List<String> files = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-from") && i + 1 < args.length) {
+          from = parseTime(args[++i]);
+        } else if (args[i].equals("-to") && i + 1 < args.length) {
+          to = parseTime(args[++i]);
+        } else if (args[i].startsWith("-")) {
+          throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+        } else {
+          files.add(args[i]);
+        }
+      }
+      if (files.isEmpty()) {
+        throw new IllegalArgumentException("No log files given.");
+      }
+    } catch (IllegalArgumentException ia) {
+      System.out.println(ia.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+    for (String name : files) {
+      InputStream in = new FileInputStream(name);
+      if (name.endsWith(".gz")) {
+        in = new GZIPInputStream(in, 65536);
+      }
+      try (DataInputStream data = new DataInputStream(new BufferedInputStream(in, 65536))) {
+        convert(data, from, to, out);
+      } catch (EOFException eof) {
+        // A log still being written can end part way through a record.
+      } catch (IOException io) {
+        System.err.println(name + ": " + io.getMessage());
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Converts the records of one file.
+   * @param in The file's bytes.
+   * @param from The earliest time to keep, in milliseconds since the epoch.
+   * @param to The time to keep up to, not including itself.
+   * @param out Where the text lines go.
+   */
+  public static void convert(DataInputStream in, long from, long to, Writer out) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC) || in.readByte() != FORMAT_VERSION) {
+      throw new IOException("Not a binary access log.");
+    }
+    List<String> ids = new ArrayList<String>();
+    ids.add(null);
+    long time = 0;
+    long lastSecond = -1;
+    String timestamp = null;
+    String[] statuses = new String[1000];
+    String lineEnd = System.lineSeparator();
+    int type;
+    while ((type = in.read()) >= 0) {
+      switch (type) {
+        case DEFINE : {
+          int id = (int) readVarLong(in);
+          byte[] bytes = new byte[(int) readVarLong(in)];
+          in.readFully(bytes);
+          if (id != ids.size()) {
+            throw new IOException("Ids out of order.");
+          }
+          ids.add(new String(bytes, StandardCharsets.UTF_8));
+          break;
+        }
+        case REQUEST : {
+          time += unZigZag(readVarLong(in));
+          byte[] address = new byte[in.readUnsignedByte()];
+          in.readFully(address);
+          int status = in.readUnsignedShort();
+          int methodId = (int) readVarLong(in);
+          int targetId = (int) readVarLong(in);
+          int version = in.readUnsignedByte();
+          readVarLong(in);
+          if (time < from || time >= to) {
+            break;
+          }
+          if (time / 1000 != lastSecond) {
+            lastSecond = time / 1000;
+            timestamp = HttpDate.formatLog(time);
+          }
+          if (status < statuses.length && statuses[status] == null) {
+            statuses[status] = Response.statusText(status);
+          }
+          out.write(timestamp);
+          out.write(" - ");
+          out.write(InetAddress.getByAddress(address).getHostAddress());
+          out.write(" \"");
+          if (methodId != 0) {
+            out.write(name(ids, methodId));
+            out.write(' ');
+            out.write(name(ids, targetId));
+            out.write(version == 1 ? " HTTP/1.1" : " HTTP/1.0");
+          } else {
+            out.write(name(ids, targetId));
+          }
+          out.write("\" ");
+          out.write(status < statuses.length ? statuses[status] : Integer.toString(status));
+          out.write(lineEnd);
+          break;
+        }
+        case RESET :
+          ids.subList(1, ids.size()).clear();
+          time = 0;
+          break;
+        default :
+          throw new IOException("Unknown record type " + type + ".");
+      }
+    }
+  }
+
+  /**
+   * Looks up a defined method or path, a damaged file can refer to one that was never defined.
+   */
+  private static String name(List<String> ids, int id) throws IOException {
+    if (id <= 0 || id >= ids.size()) {
+      throw new IOException("Undefined id " + id + ".");
+    }
+    return ids.get(id);
+  }
+
+  /**
+   * Parses a time given on the command line, either a date and time in this machine's time zone or a
+   * number of milliseconds since the epoch.
+   */
+  private static long parseTime(String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException nf) {
+      // Not a number, try a date.
+    }
+    try {
+      return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    } catch (DateTimeParseException dtp) {
+      throw new IllegalArgumentException("Time must be like 2015-03-15T00:04:48 or in milliseconds: " + value);
+    }
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  /**
+   * Maps signed numbers to unsigned ones so small negative differences stay small as varints.
+   */
+  static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rotates the access log once it reaches a size or an age. The log writer calls rotate, which only
+ * renames the file so the writer can carry on with a fresh one straight away. The renamed segments
+ * are gzipped afterwards on this low priority thread, which then deletes the oldest segments while
+ * they take up more than the space allowed.
+ *
+ * Segments are named after the log and the time they were rotated, ie access-log-20150315-000448-123.txt.gz,
+ * so sorting them by name puts them in the order they were written.
+ */
+public class LogRotator extends Thread {
+  private final Path log;
+  private final String prefix;
+  private final String suffix;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final long retainBytes;
+  private final LinkedBlockingQueue<Path> toCompress = new LinkedBlockingQueue<Path>();
+
+  /**
+   * Creates the rotator. Segments left uncompressed by an earlier run are compressed once it starts.
+   * @param log The live log file.
+   * @param maxBytes The size at which the log is rotated, 0 for no limit.
+   * @param maxAgeMillis The age at which the log is rotated, 0 for no limit.
+   * @param retainBytes The most space the rotated segments may take up.
+   */
+  public LogRotator(Path log, long maxBytes, long maxAgeMillis, long retainBytes) {
+    super("bws-log-rotator");
+    setDaemon(true);
+    setPriority(Thread.MIN_PRIORITY);
+    this.log = log.toAbsolutePath();
+    String name = this.log.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    this.prefix = (dot > 0 ? name.substring(0, dot) : name) + "-";
+    this.suffix = dot > 0 ? name.substring(dot) : "";
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.retainBytes = retainBytes;
+    for (Path segment : segments()) {
+      if (segment.getFileName().toString().endsWith(suffix)) {
+        toCompress.add(segment);
+      }
+    }
+  }
+
+  /**
+   * Checks whether the live log should be rotated.
+   * @param size The size of the live log.
+   * @param openedAt When the live log was started, in milliseconds since the epoch.
+   * @return True if it has reached the size or the age limit.
+   */
+  public boolean due(long size, long openedAt) {
+    return (maxBytes > 0 && size >= maxBytes)
+        || (maxAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxAgeMillis);
+  }
+
+  /**
+   * Renames the live log to a new segment and queues the segment to be compressed. The caller must have
+   * closed the log and opens a new one afterwards.
+   * @throws IOException If the log cannot be renamed, in which case the caller carries on with it.
+   */
+  public void rotate() throws IOException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+    long time = System.currentTimeMillis();
+    Path segment = log.resolveSibling(prefix + format.format(new Date(time)) + suffix);
+    while (Files.exists(segment) || Files.exists(gzipped(segment))) {
+      // Rotated twice in one millisecond, a later time keeps the names in order.
+      segment = log.resolveSibling(prefix + format.format(new Date(++time)) + suffix);
+    }
+    Files.move(log, segment);
+    toCompress.add(segment);
+  }
+
+  public void run() {
+    while (true) {
+      Path segment;
+      try {
+        segment = toCompress.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      try {
+        compress(segment);
+      } catch (IOException io) {
+        WebServer.logln("ERROR: Failed to compress " + segment + ": " + io.getMessage());
+      }
+      removeOldest();
+    }
+  }
+
+  /**
+   * Gzips a segment next to itself and removes the original. Written under a temporary name first so a
+   * partly written file is never taken for a finished segment.
+   */
+  private void compress(Path segment) throws IOException {
+    Path gz = gzipped(segment);
+    Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+    try (InputStream in = Files.newInputStream(segment);
+        OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 65536)) {
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    }
+    Files.move(tmp, gz, StandardCopyOption.REPLACE_EXISTING);
+    Files.delete(segment);
+  }
+
+  /**
+   * Deletes the oldest segments until the rest fit in the space allowed.
+   */
+  private void removeOldest() {
+    List<Path> segments = segments();
+    long total = 0;
+    long[] sizes = new long[segments.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      try {
+        sizes[i] = Files.size(segments.get(i));
+      } catch (IOException io) {
+        // Gone already.
+      }
+      total += sizes[i];
+    }
+    // The names sort by the time they were rotated, oldest first.
+    for (int i = 0; i < sizes.length && total > retainBytes; i++) {
+      try {
+        Files.deleteIfExists(segments.get(i));
+        total -= sizes[i];
+      } catch (IOException io) {
+        WebServer.logln("ERROR: Failed to delete " + segments.get(i));
+      }
+    }
+  }
+
+  /**
+   * @return The rotated segments, compressed or not, sorted by name.
+   */
+  private List<Path> segments() {
+    List<Path> segments = new ArrayList<Path>();
+    try (DirectoryStream<Path> dir = Files.newDirectoryStream(log.getParent(), prefix + "*")) {
+      for (Path path : dir) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(suffix) || name.endsWith(suffix + ".gz")) {
+          segments.add(path);
+        }
+      }
+    } catch (IOException io) {
+      WebServer.logln("ERROR: Cannot list the log segments: " + io.getMessage());
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private static Path gzipped(Path segment) {
+    return segment.resolveSibling(segment.getFileName() + ".gz");
+  }
+}
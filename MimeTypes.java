@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Maps file extensions to MIME types, read from a mime.types file in the format Apache and nginx use:
+ * a type followed by its extensions on each line, with # starting a comment, ie
+ *   text/css      css
+ *   image/jpeg    jpeg jpg
+ * Text based types get '; charset=utf-8' added when they are loaded, so the type of a file is a single
+ * hash lookup on its extension. Types are worked out when a file is indexed or cached and kept with it,
+ * not for every request.
+ */
+public final class MimeTypes {
+  public static final String DEFAULT_FILE = "mime.types";
+  // Sent for files whose extension is not known, which browsers download rather than display.
+  public static final String UNKNOWN = "application/octet-stream";
+  private static final String CHARSET = "; charset=utf-8";
+
+  // Used when there is no mime.types file, the types the server has always known.
+  private static final String BUILT_IN = "text/html html htm\n"
+      + "text/css css\n"
+      + "text/javascript js\n"
+      + "text/plain txt\n"
+      + "image/jpeg jpeg jpg\n"
+      + "image/png png\n"
+      + "image/gif gif\n";
+
+  private final HashMap<String, String> types;
+
+  private MimeTypes(HashMap<String, String> types) {
+    this.types = types;
+  }
+
+  /**
+   * Reads a mime.types file.
+   * @param path The file.
+   * @return The types it lists.
+   * @throws IOException If the file cannot be read.
+   */
+  public static MimeTypes load(Path path) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      return parse(in);
+    }
+  }
+
+  /**
+   * Reads a mime.types file, or uses the built in types if it does not exist.
+   * @param path The file.
+   * @return The types.
+   * @throws IOException If the file exists but cannot be read.
+   */
+  public static MimeTypes loadOrBuiltIn(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return builtIn();
+    }
+    return load(path);
+  }
+
+  /**
+   * @return The few types known without a mime.types file.
+   */
+  public static MimeTypes builtIn() {
+    try {
+      return parse(new BufferedReader(new StringReader(BUILT_IN)));
+    } catch (IOException io) {
+      // Reading a string does not fail.
+      throw new UncheckedIOException(io);
+    }
+  }
+
+  private static MimeTypes parse(BufferedReader in) throws IOException {
+    HashMap<String, String> types = new HashMap<String, String>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      int hash = line.indexOf('#');
+      if (hash >= 0) {
+        line = line.substring(0, hash);
+      }
+      String[] words = line.trim().split("\\s+");
+      if (words.length < 2) {
+        continue;
+      }
+      String type = words[0];
+      if (type.indexOf(';') < 0 && isText(type)) {
+        type += CHARSET;
+      }
+      for (int i = 1; i < words.length; i++) {
+        // nginx ends each line with a semicolon.
+        String extension = words[i].endsWith(";") ? words[i].substring(0, words[i].length() - 1) : words[i];
+        if (!extension.isEmpty()) {
+          types.put(extension.toLowerCase(Locale.ROOT), type);
+        }
+      }
+    }
+    return new MimeTypes(types);
+  }
+
+  /**
+   * Gets the type of a file from the extension of its name.
+   * @param name The file name, ie 'style.css'.
+   * @return The type, or UNKNOWN if the name has no extension or one that is not listed.
+   */
+  public String get(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot < 0 || dot == name.length() - 1) {
+      return UNKNOWN;
+    }
+    String type = types.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    return type != null ? type : UNKNOWN;
+  }
+
+  /**
+   * @return The number of extensions known.
+   */
+  public int size() {
+    return types.size();
+  }
+
+  /**
+   * Checks whether a type is text based, which covers text, scripts, json and xml.
+   * @param type The type, with or without parameters.
+   * @return True if the type is text.
+   */
+  public static boolean isText(String type) {
+    String base = baseType(type);
+    return base.startsWith("text/")
+        || base.equals("application/javascript")
+        || base.equals("application/json")
+        || base.equals("application/xml")
+        || base.endsWith("+json")
+        || base.endsWith("+xml");
+  }
+
+  /**
+   * @return The type without any parameters, ie 'text/css' for 'text/css; charset=utf-8'.
+   */
+  public static String baseType(String type) {
+    int semicolon = type.indexOf(';');
+    return (semicolon < 0 ? type : type.substring(0, semicolon)).trim();
+  }
+}
@@ -0,0 +1,407 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking engine for the web server. Accepted connections are handed round robin to a fixed
+ * number of event loops, each of which serves all of its connections from a single thread with a
+ * Selector. Requests are read incrementally as bytes arrive and are answered by the same
+ * RequestHandler as the blocking engines, so an idle connection only costs its small read state
+ * rather than a whole thread stack.
+ */
+public class NioServer {
+  private final ServerSocketChannel serverChannel;
+  private final EventLoop[] loops;
+
+  /**
+   * Creates the event loops for a bound server channel.
+   * @param serverChannel The channel to accept connections from.
+   * @param config The number of event loops, keep-alive, idle timeout and sendfile settings.
+   */
+  public NioServer(ServerSocketChannel serverChannel, ServerConfig config) throws IOException {
+    this.serverChannel = serverChannel;
+    loops = new EventLoop[config.loops];
+    for (int i = 0; i < config.loops; i++) {
+      loops[i] = new EventLoop("bws-loop-" + (i + 1), config);
+    }
+  }
+
+  /**
+   * Starts the event loops and then accepts connections on the calling thread forever.
+   */
+  public void run() throws IOException {
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+    int next = 0;
+    while (true) {
+      // Wait for a connection to be made.
+      SocketChannel channel = serverChannel.accept();
+      loops[next].register(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  /**
+   * A thread serving many connections with a selector.
+   */
+  private static class EventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+    private final int maxRequests;
+    private final long idleTimeout;
+    private final long sendfileThreshold;
+    private long lastSweep = System.currentTimeMillis();
+
+    EventLoop(String name, ServerConfig config) throws IOException {
+      super(name);
+      this.maxRequests = config.maxRequests;
+      this.idleTimeout = config.idleTimeout;
+      this.sendfileThreshold = config.sendfileThreshold;
+      selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop, called from the accepting thread.
+     * @param channel The connected channel.
+     */
+    void register(SocketChannel channel) {
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    public void run() {
+      BufferPool.cacheOnThisThread();
+      while (true) {
+        try {
+          selector.select(1000);
+        } catch (IOException io) {
+          WebServer.logln("IO ERROR: " + io.getMessage());
+          continue;
+        }
+
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+          try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel, sendfileThreshold));
+            WebServer.openConnections.incrementAndGet();
+          } catch (IOException io) {
+            WebServer.logln("IO ERROR: " + io.getMessage());
+            closeQuietly(channel);
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection conn = (Connection) key.attachment();
+          try {
+            conn.lastActive = System.currentTimeMillis();
+            if (key.isReadable()) {
+              read(key, conn);
+            } else if (key.isWritable()) {
+              serve(key, conn);
+            }
+          } catch (IOException io) {
+            WebServer.logln("IO ERROR: " + io.getMessage());
+            close(key, conn);
+          } catch (RuntimeException ex) {
+            // A bad connection must not take the other connections on the loop down with it.
+            WebServer.logln("ERROR: " + ex);
+            close(key, conn);
+          }
+        }
+
+        closeIdle();
+      }
+    }
+
+    /**
+     * Closes the connections that have not been read from or written to for longer than the idle timeout,
+     * checked at most once a second.
+     */
+    private void closeIdle() {
+      long now = System.currentTimeMillis();
+      if (now - lastSweep < 1000) {
+        return;
+      }
+      lastSweep = now;
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (key.isValid() && now - conn.lastActive > idleTimeout) {
+          WebServer.logln("Connection idle for longer than " + idleTimeout + "ms");
+          close(key, conn);
+        }
+      }
+    }
+
+    /**
+     * Reads whatever has arrived on a connection and answers any requests that are complete.
+     */
+    private void read(SelectionKey key, Connection conn) throws IOException {
+      int rc = conn.request.fill(conn.channel);
+      if (rc < 0) {
+        // The client closed the connection, possibly part way through a request.
+        close(key, conn);
+        return;
+      }
+      serve(key, conn);
+    }
+
+    /**
+     * Answers the requests that have been read in full, in order. The responses are copied one after
+     * another into the connection's out buffer, so the answers to pipelined requests go out together
+     * in as few writes as possible. Stops when the socket is full, in which case it carries on once the
+     * socket is writable, or when every request read so far has been answered and sent.
+     */
+    private void serve(SelectionKey key, Connection conn) throws IOException {
+      while (true) {
+        // Fill the out buffer with responses while there are requests to answer and room left.
+        while (true) {
+          if (conn.response == null) {
+            if (conn.closing || !conn.request.parse()) break;
+            conn.served++;
+            conn.handler = new RequestHandler(conn.request, conn.served < maxRequests);
+            conn.response = conn.handler.handle();
+            conn.startResponse();
+          }
+          if (!conn.copyResponse()) break;
+          finish(conn);
+        }
+
+        if (conn.out != null && conn.out.position() > 0) {
+          conn.out.flip();
+          conn.channel.write(conn.out);
+          boolean written = !conn.out.hasRemaining();
+          conn.out.compact();
+          if (!written) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+          // The buffer has gone out, a file transfer waiting on it can start now.
+          continue;
+        }
+        if (conn.response != null) {
+          // Nothing is buffered but the response is unfinished, so a file transfer has filled the socket.
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+        break;
+      }
+
+      if (conn.closing) {
+        close(key, conn);
+        return;
+      }
+      // Everything has been sent, free the buffers while waiting for the next request.
+      key.interestOps(SelectionKey.OP_READ);
+      conn.releaseOut();
+      conn.request.release();
+    }
+
+    /**
+     * Logs a response that has been copied to the out buffer, then either marks the connection to be
+     * closed once the buffer is sent or gets it ready for the next request.
+     */
+    private void finish(Connection conn) {
+      conn.handler.logRequest(conn.response, conn.address);
+      conn.closing = !conn.response.keepAlive;
+      conn.handler = null;
+      conn.response = null;
+      if (!conn.closing) {
+        conn.request.next();
+      }
+    }
+
+    private static void close(SelectionKey key, Connection conn) {
+      key.cancel();
+      conn.close();
+      WebServer.openConnections.decrementAndGet();
+    }
+  }
+
+  /**
+   * The state of one connection on an event loop. The request parser only holds a buffer while a request
+   * is arriving, and the out buffer is only taken from the pool while there are responses to send, so a
+   * connection waiting for its next request keeps neither.
+   */
+  private static class Connection {
+    private static final int OUT_SIZE = 65536;
+
+    final SocketChannel channel;
+    final InetAddress address;
+    final RequestParser request = new RequestParser();
+    int served = 0;
+    long lastActive = System.currentTimeMillis();
+    boolean closing = false;
+
+    RequestHandler handler = null;
+    Response response = null;
+    ByteBuffer out = null;
+    // What is left of the current response to copy to the out buffer.
+    boolean headPending = false;
+    byte[] pending = null;
+    int pendingOffset = 0;
+    FileChannel file = null;
+    final long sendfileThreshold;
+    // The range of the file being sent, rangeIndex steps through response.ranges two at a time.
+    int rangeIndex = 0;
+    long filePosition = 0;
+    long rangeEnd = 0;
+    boolean transfer = false;
+
+    Connection(SocketChannel channel, long sendfileThreshold) {
+      this.channel = channel;
+      this.sendfileThreshold = sendfileThreshold;
+      this.address = channel.socket().getInetAddress();
+    }
+
+    /**
+     * Gets ready to copy a new response, the header, then any in memory body, then any file.
+     */
+    void startResponse() throws IOException {
+      WebServer.logln("Sending response...");
+      if (WebServer.LOGGING) {
+        WebServer.log(response.toString());
+      }
+      if (out == null) {
+        // Sized for the first response, a burst of pipelined ones goes out a buffer at a time.
+        out = BufferPool.acquire((int) Math.min(OUT_SIZE, response.length()));
+      }
+      headPending = true;
+      pending = response.body;
+      pendingOffset = 0;
+      if (response.file != null) {
+        try {
+          file = new FileInputStream(response.file).getChannel();
+          // Before the first range, nextRange moves on to it.
+          rangeIndex = -2;
+          filePosition = 0;
+          rangeEnd = 0;
+        } catch (FileNotFoundException fnf) {
+          // The file went away after the header was built, all that can be done is to drop the connection.
+          throw new IOException("Cannot open " + response.file);
+        }
+      }
+    }
+
+    /**
+     * Copies as much of the current response as fits into the out buffer. Ranges of a file at or above
+     * the sendfile threshold are not copied, once everything before them has been written they are
+     * transferred straight to the socket instead.
+     * @return True once all of the response has been copied or transferred.
+     */
+    boolean copyResponse() throws IOException {
+      if (headPending) {
+        // The header goes in whole, with the date of the current second filled in.
+        if (out.remaining() < response.headLength()) {
+          return false;
+        }
+        response.writeHead(out);
+        headPending = false;
+      }
+      while (true) {
+        if (pending != null) {
+          int n = Math.min(pending.length - pendingOffset, out.remaining());
+          out.put(pending, pendingOffset, n);
+          pendingOffset += n;
+          if (pendingOffset < pending.length) {
+            return false;
+          }
+          pending = null;
+          pendingOffset = 0;
+        }
+        if (file == null) {
+          return true;
+        }
+        if (filePosition == rangeEnd) {
+          nextRange();
+          continue;
+        }
+        if (transfer) {
+          if (out.position() > 0) {
+            return false;
+          }
+          while (filePosition < rangeEnd) {
+            long n = file.transferTo(filePosition, rangeEnd - filePosition, channel);
+            if (n <= 0) {
+              return false;
+            }
+            filePosition += n;
+          }
+        } else {
+          // Read no further than the end of the range.
+          int limit = out.limit();
+          out.limit((int) Math.min(limit, out.position() + rangeEnd - filePosition));
+          int n = file.read(out, filePosition);
+          out.limit(limit);
+          if (n < 0) {
+            throw new IOException("File shrank while it was being sent.");
+          }
+          filePosition += n;
+          if (!out.hasRemaining()) {
+            return false;
+          }
+        }
+      }
+    }
+
+    /**
+     * Moves on to the next range of the file, queueing the part header that goes before it, or closes the
+     * file and queues the closing boundary after the last one.
+     */
+    private void nextRange() throws IOException {
+      rangeIndex += 2;
+      long[] ranges = response.ranges;
+      if (rangeIndex < ranges.length) {
+        filePosition = ranges[rangeIndex];
+        rangeEnd = filePosition + ranges[rangeIndex + 1];
+        transfer = ranges[rangeIndex + 1] >= sendfileThreshold;
+        if (response.parts != null) {
+          pending = response.parts[rangeIndex / 2];
+        }
+      } else {
+        file.close();
+        file = null;
+        if (response.parts != null) {
+          pending = response.parts[response.parts.length - 1];
+        }
+      }
+    }
+
+    /**
+     * Gives the out buffer back to the pool once everything in it has been sent or the connection is closing.
+     */
+    void releaseOut() {
+      if (out != null) {
+        BufferPool.release(out);
+        out = null;
+      }
+    }
+
+    /**
+     * Closes the file being sent, if any, and then the channel itself.
+     */
+    void close() {
+      if (file != null) {
+        closeQuietly(file);
+      }
+      releaseOut();
+      closeQuietly(channel);
+      WebServer.logln("Connection closed");
+    }
+  }
+
+  private static void closeQuietly(Closeable c) {
+    try {
+      c.close();
+    } catch (IOException ex) {
+      WebServer.logln("ERROR: Failed to close " + c + " properly.");
+    }
+  }
+}
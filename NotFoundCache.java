@@ -0,0 +1,112 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the resources that were not found for a while, so repeated requests for them, ie
+ * '/favicon.ico' or a scanner working through a list of paths, are answered with 404 without checking
+ * the disk for the file and each of the default files again. Entries expire after a time to live, and
+ * the FileWatcher drops all of them when anything under PUBLIC_DIR changes, so a file that appears is
+ * found straight away. Only used when requests are not resolved through a DocumentIndex, which finds
+ * missing resources without the disk already.
+ */
+public class NotFoundCache {
+  // The most resources remembered, the oldest are forgotten first.
+  public static final int MAX_ENTRIES = 4096;
+  // Longer resources are not remembered, so made up paths cannot fill memory.
+  public static final int MAX_RESOURCE_LENGTH = 1024;
+
+  private final long ttlMillis;
+  // The time each resource expires, in the order they were added which is also the order they expire.
+  private final LinkedHashMap<String, Long> expiries = new LinkedHashMap<String, Long>(64, 0.75f, false);
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong added = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /**
+   * Creates an empty cache.
+   * @param ttlMillis How long a resource is remembered as not found.
+   */
+  public NotFoundCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Checks whether a resource was recently not found.
+   * @param resource The requested resource.
+   * @return True if it is still known to be missing.
+   */
+  public boolean contains(String resource) {
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      Long expiry = expiries.get(resource);
+      if (expiry == null) {
+        return false;
+      }
+      if (expiry <= now) {
+        expiries.remove(resource);
+        expired.incrementAndGet();
+        return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Remembers that a resource was not found, forgetting the oldest resources to stay within MAX_ENTRIES.
+   * @param resource The requested resource.
+   */
+  public void add(String resource) {
+    if (resource.length() > MAX_RESOURCE_LENGTH) {
+      return;
+    }
+    long expiry = System.currentTimeMillis() + ttlMillis;
+    lock.lock();
+    try {
+      // Removed first so the resource moves to the end of the order along with its new expiry.
+      expiries.remove(resource);
+      expiries.put(resource, expiry);
+      Iterator<Long> eldest = expiries.values().iterator();
+      while (expiries.size() > MAX_ENTRIES && eldest.hasNext()) {
+        eldest.next();
+        eldest.remove();
+      }
+    } finally {
+      lock.unlock();
+    }
+    added.incrementAndGet();
+  }
+
+  /**
+   * Forgets every resource, used when files may have appeared.
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      expiries.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The counters for the status page.
+   */
+  public String status() {
+    lock.lock();
+    try {
+      return "notfound.entries: " + expiries.size() + "\r\n"
+        + "notfound.hits: " + hits.get() + "\r\n"
+        + "notfound.added: " + added.get() + "\r\n"
+        + "notfound.expired: " + expired.get() + "\r\n";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip sidecar next to each compressible file under a directory, ie 'style.css.gz' next to
+ * 'style.css', which the server sends to clients that accept gzip instead of compressing anything while
+ * serving. Files whose sidecar is already up to date are skipped, so it can be run again after any
+ * change, ie:
+ *   java Precompress www
+ *   java Precompress -min 1024 www
+ * The server does the same at start up when given '-precompress on'.
+ *
+ * A sidecar gets the modification time of the file it was made from, so a file changed while or after
+ * it was compressed is newer than its sidecar and the server ignores the sidecar until it is remade.
+ */
+public class Precompress {
+  public static final String USAGE = "Usage: java Precompress [options] [directory]\n"
+      + "  -min bytes     Smallest file worth compressing (default 256)\n"
+      + "  -mimetypes f   The MIME types of the files, as for the server (default " + MimeTypes.DEFAULT_FILE + ")\n"
+      + "The directory defaults to " + WebServer.PUBLIC_DIR + ".";
+
+  public static final String SUFFIX = ".gz";
+  // Below this the gzip header and trailer eat most of what compressing saves.
+  public static final long MIN_SIZE = 256;
+
+  public static void main(String[] args) throws IOException {
+    long minSize = MIN_SIZE;
+    String directory = WebServer.PUBLIC_DIR;
+    String mimeTypes = MimeTypes.DEFAULT_FILE;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-min") && i + 1 < args.length) {
+          minSize = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-mimetypes") && i + 1 < args.length) {
+          mimeTypes = args[++i];
+        } else if (args[i].startsWith("-")) {
+          throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+        } else {
+          directory = args[i];
+        }
+      }
+    } catch (IllegalArgumentException ia) {
+      // Also catches a number that does not parse.
+      System.out.println(ia.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+    // Which files are compressible depends on their types, so they have to match the server's.
+    WebServer.mimeTypes = MimeTypes.loadOrBuiltIn(Paths.get(mimeTypes));
+    int written = compressTree(Paths.get(directory), minSize);
+    System.out.println("Wrote " + written + " sidecars.");
+  }
+
+  /**
+   * Makes or remakes the sidecars of every compressible file under a directory that needs one.
+   * @param root The directory.
+   * @param minSize The smallest file worth compressing.
+   * @return The number of sidecars written.
+   * @throws IOException If the directory cannot be walked, files that cannot be compressed are skipped.
+   */
+  public static int compressTree(Path root, long minSize) throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.filter(Files::isRegularFile).forEach(files::add);
+    }
+    int written = 0;
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (name.endsWith(SUFFIX) || !compressible(RequestHandler.getContentType(file.toFile()))) {
+        continue;
+      }
+      try {
+        if (Files.size(file) >= minSize && compress(file)) {
+          written++;
+        }
+      } catch (IOException io) {
+        System.out.println("ERROR: Failed to compress " + file + ": " + io.getMessage());
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Checks whether files of a MIME type are worth compressing. Images and other formats that are
+   * compressed already only get bigger.
+   * @param contentType The MIME type, ie 'text/css; charset=utf-8'.
+   * @return True for text and the other formats that compress well.
+   */
+  public static boolean compressible(String contentType) {
+    return MimeTypes.isText(contentType) || MimeTypes.baseType(contentType).equals("application/wasm");
+  }
+
+  /**
+   * Writes the sidecar of one file unless it is already up to date. The sidecar is written to a
+   * temporary file and moved into place, so the server never sees half of one. One that comes out no
+   * smaller than the file is not kept.
+   * @param file The file to compress.
+   * @return True if a sidecar was written.
+   */
+  private static boolean compress(Path file) throws IOException {
+    Path sidecar = file.resolveSibling(file.getFileName() + SUFFIX);
+    FileTime modified = Files.getLastModifiedTime(file);
+    if (Files.isRegularFile(sidecar) && Files.getLastModifiedTime(sidecar).compareTo(modified) >= 0) {
+      return false;
+    }
+    Path temporary = file.resolveSibling(file.getFileName() + SUFFIX + ".tmp");
+    try {
+      try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary), 65536) {
+            {
+              // Compressed once and sent many times, so it is worth the slowest level.
+              def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+          }) {
+        Files.copy(file, out);
+      }
+      if (Files.size(temporary) >= Files.size(file)) {
+        Files.deleteIfExists(sidecar);
+        return false;
+      }
+      Files.setLastModifiedTime(temporary, modified);
+      Files.move(temporary, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
@@ -0,0 +1,482 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Interprets a single HTTP request, finds the requested file and builds the response to send back.
+ * Knows nothing about the connection so it is shared by the blocking and the non-blocking engines.
+ */
+public class RequestHandler {
+  // Separates the parts of multipart/byteranges bodies, random so it cannot turn up in a file by chance.
+  private static final String BOUNDARY = "bws" + Long.toHexString(new Random().nextLong() | Long.MIN_VALUE);
+
+  private long received = 0;
+  private String date = null;
+  private RequestParser request = null;
+  private String method = null;
+  private String resource = null;
+  private String version  = null;
+  private File resourceFile = null;
+  private boolean keepAlivePermitted = false;
+  private boolean keepAlive = false;
+
+  /**
+   * Creates a handler for a request that has been read from a connection.
+   * @param request The parsed request header.
+   * @param keepAlivePermitted False when the connection has served its maximum number of requests.
+   */
+  public RequestHandler(RequestParser request, boolean keepAlivePermitted) {
+    this.request = request;
+    this.keepAlivePermitted = keepAlivePermitted;
+  }
+
+  /**
+   * Interprets the http request and builds the response to it, including the error responses.
+   * @return The response to send to the client.
+   */
+  public Response handle() {
+    WebServer.logln("------ Received New Request ------");
+    received = System.currentTimeMillis();
+    date = HttpDate.now();
+
+    WebServer.logln("Timestamp: " + date);
+
+    try {
+      parseRequestLine();
+      if (!validOptionLines()) {
+        throw WebServer.BadRequestException.INSTANCE;
+      }
+      keepAlive = keepAlivePermitted && wantsKeepAlive();
+
+      WebServer.logln("\nMethod: " + method
+             + "\nResource: " + resource
+             + "\nVersion: " + version);
+
+      resourceFile = new File(WebServer.PUBLIC_DIR + resource);
+
+      switch (method) {
+        case "GET" :
+          if (resource.equals(WebServer.config.statusPath)) {
+            return status();
+          }
+          return get();
+        case "HEAD" :
+          return head();
+        case "TRACE" :
+          return trace();
+        default :
+          throw WebServer.NotImplementedException.INSTANCE;
+      }
+    } catch (WebServer.BadRequestException br) {
+      // Where the next request starts cannot be trusted after a bad one.
+      keepAlive = false;
+      return respondWithHeadCheck(ErrorPage.BAD_REQUEST);
+    } catch (WebServer.NotFoundException nf) {
+      return respondWithHeadCheck(ErrorPage.NOT_FOUND);
+    } catch (WebServer.NotImplementedException ni) {
+      return respondWithHeadCheck(ErrorPage.NOT_IMPLEMENTED);
+    }
+  }
+
+  /**
+   * Checks the request line is valid and takes the method, resource and version from it.
+   */
+  private void parseRequestLine() throws WebServer.BadRequestException {
+    method = request.getMethod();
+    resource = request.getTarget();
+    version = request.getVersion();
+    if (method == null || resource == null || version == null) {
+      throw WebServer.BadRequestException.INSTANCE;
+    }
+  }
+
+  /**
+   * Checks whether the option lines are valid for the version of HTTP.
+   * @return True if the options are valid, false if not.
+   */
+  private boolean validOptionLines() {
+    if (version.equals("1.1")) {
+      // version 1.1 requires there to be a Host option.
+      return request.getHeaders().contains(HeaderMap.HOST);
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether the connection can stay open after this request. HTTP/1.1 connections are persistent
+   * unless the client asks to close, HTTP/1.0 ones only when the client asks to keep them alive. Requests
+   * with a body are never kept alive as the body is not read.
+   * @return True to keep the connection open.
+   */
+  private boolean wantsKeepAlive() {
+    HeaderMap headers = request.getHeaders();
+    if (request.isTruncated() || headers.contains(HeaderMap.CONTENT_LENGTH) || headers.contains(HeaderMap.TRANSFER_ENCODING)) {
+      return false;
+    }
+    String connection = headers.get(HeaderMap.CONNECTION);
+    if (version.equals("1.1")) {
+      return connection == null || !connection.equalsIgnoreCase("close");
+    }
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+
+  /**
+   * Responds to a HTTP GET request. Builds the response header for the given file and
+   * sends the file to the client if it exists.
+   */
+  private Response get() throws WebServer.NotFoundException {
+    FileCache.Entry entry = negotiate(findFile());
+    if (notModified(entry)) {
+      return new Response(Response.NOT_MODIFIED, entry.notModifiedOptions, null, keepAlive);
+    }
+    HeaderMap headers = request.getHeaders();
+    String range = headers.get(HeaderMap.RANGE);
+    if (range != null && entry.rangeCurrent(headers.get(HeaderMap.IF_RANGE))) {
+      long[] ranges = ByteRanges.parse(range, entry.length);
+      if (ranges != null) {
+        return partial(entry, ranges);
+      }
+    }
+    // Cached bodies are sent from memory, anything else straight from the file.
+    if (entry.body != null) {
+      return new Response(Response.OK, entry.options, entry.body, keepAlive);
+    }
+    return new Response(Response.OK, entry.options, entry.file, entry.length, keepAlive);
+  }
+
+  /**
+   * Responds to a range request with the parts of the file asked for. A single range is sent as it is,
+   * several as a multipart/byteranges body. The ranges go out from the file like any other file body,
+   * so large ones are sent with transferTo. Ranges of a gzip sidecar are ranges of the compressed bytes,
+   * so with several of them each part says it is gzip encoded rather than the whole body.
+   * @param entry The requested file.
+   * @param ranges The offset and length of each range in pairs, empty if none can be satisfied.
+   */
+  private Response partial(FileCache.Entry entry, long[] ranges) {
+    if (ranges.length == 0) {
+      return new Response(Response.RANGE_NOT_SATISFIABLE, ("Server: bws\r\n"
+        + "Content-Range: bytes */" + entry.length + "\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n").getBytes(), null, keepAlive);
+    }
+    if (ranges.length == 2) {
+      return new Response(Response.PARTIAL_CONTENT, ("Server: bws\r\n"
+        + entry.validators
+        + entry.vary
+        + "Accept-Ranges: bytes\r\n"
+        + entry.encoding
+        + "Content-Range: " + contentRange(ranges[0], ranges[1], entry.length) + "\r\n"
+        + "Content-Length: " + ranges[1] + "\r\n"
+        + "Content-Type: " + entry.contentType + "\r\n"
+        + "\r\n").getBytes(), entry.file, ranges, null, keepAlive);
+    }
+
+    byte[][] parts = new byte[ranges.length / 2 + 1][];
+    long length = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      parts[i / 2] = ((i == 0 ? "" : "\r\n") + "--" + BOUNDARY + "\r\n"
+        + "Content-Type: " + entry.contentType + "\r\n"
+        + entry.encoding
+        + "Content-Range: " + contentRange(ranges[i], ranges[i + 1], entry.length) + "\r\n"
+        + "\r\n").getBytes();
+      length += parts[i / 2].length + ranges[i + 1];
+    }
+    parts[parts.length - 1] = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+    length += parts[parts.length - 1].length;
+    return new Response(Response.PARTIAL_CONTENT, ("Server: bws\r\n"
+      + entry.validators
+      + entry.vary
+      + "Accept-Ranges: bytes\r\n"
+      + "Content-Length: " + length + "\r\n"
+      + "Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n"
+      + "\r\n").getBytes(), entry.file, ranges, parts, keepAlive);
+  }
+
+  /**
+   * @return The Content-Range of a range, ie 'bytes 0-499/1234'.
+   */
+  private static String contentRange(long offset, long length, long total) {
+    return "bytes " + offset + "-" + (offset + length - 1) + "/" + total;
+  }
+
+  /**
+   * Responds to a HTTP HEAD request. Only sends the HTTP headers without the message body.
+   */
+  private Response head() throws WebServer.NotFoundException {
+    FileCache.Entry entry = negotiate(findFile());
+    if (notModified(entry)) {
+      return new Response(Response.NOT_MODIFIED, entry.notModifiedOptions, null, keepAlive);
+    }
+    return new Response(Response.OK, entry.options, null, keepAlive);
+  }
+
+  /**
+   * Responds to a HTTP TRACE request.
+   * Sends the received HTTP headers back to the client as the message body of the response.
+   */
+  private Response trace() {
+    // Echo the raw header exactly as it was received.
+    byte[] received = Arrays.copyOf(request.getBuffer(), request.getHeaderLength());
+
+    return new Response(Response.OK, ("Server: bws\r\n"
+      + "Content-Length: " + received.length + "\r\n"
+      + "Content-Type: message/http\r\n"
+      + "\r\n").getBytes(),
+      received, keepAlive);
+  }
+
+  /**
+   * Responds with the server counters as plain text, used to size the worker pool for a host.
+   */
+  private Response status() {
+    String report = "engine: " + WebServer.config.engine + "\r\n"
+      + "connections.open: " + WebServer.openConnections.get() + "\r\n"
+      + "threads.platform: " + ManagementFactory.getThreadMXBean().getThreadCount() + "\r\n";
+    WorkerPool workers = WebServer.workers;
+    if (workers != null) {
+      report += "workers.threads: " + workers.getPoolSize() + "\r\n"
+        + "workers.active: " + workers.getActiveCount() + "\r\n"
+        + "workers.completed: " + workers.getCompletedCount() + "\r\n"
+        + "queue.length: " + workers.getQueueLength() + "\r\n"
+        + "queue.waiting: " + workers.getQueueSize() + "\r\n"
+        + "queue.rejected: " + workers.getRejectedCount() + "\r\n"
+        + "queue.blocked: " + workers.getBlockedCount() + "\r\n";
+    }
+    report += BufferPool.status();
+    DocumentIndex index = WebServer.index;
+    if (index != null) {
+      report += "index.files: " + index.size() + "\r\n";
+    }
+    if (WebServer.cache != null) {
+      report += WebServer.cache.status();
+    }
+    if (WebServer.notFound != null) {
+      report += WebServer.notFound.status();
+    }
+    if (WebServer.cache != null && WebServer.config.gzip) {
+      report += Gzip.status();
+    }
+    if (WebServer.accessLog != null) {
+      report += WebServer.accessLog.status();
+    }
+
+    return new Response(Response.OK, ("Server: bws\r\n"
+      + "Content-Length: " + report.length() + "\r\n"
+      + "Content-Type: text/plain\r\n"
+      + "\r\n").getBytes(),
+      report.getBytes(), keepAlive);
+  }
+
+  /**
+   * Checks whether the request is conditional and the client already has this version of the file.
+   * @param entry The requested file.
+   * @return True to answer with 304 Not Modified.
+   */
+  private boolean notModified(FileCache.Entry entry) {
+    HeaderMap headers = request.getHeaders();
+    return entry.notModified(headers.get(HeaderMap.IF_NONE_MATCH), headers.get(HeaderMap.IF_MODIFIED_SINCE));
+  }
+
+  /**
+   * Picks the version of a file to send when the client accepts gzip: the sidecar when there is one,
+   * otherwise the file compressed while serving if it is worth it. Range requests never get the latter,
+   * even once it has been made, as ranges are sent from files and it is only in memory.
+   * @param entry The requested file.
+   * @return The entry to send.
+   */
+  private FileCache.Entry negotiate(FileCache.Entry entry) {
+    HeaderMap headers = request.getHeaders();
+    if ((entry.gzip == null && !entry.compressible) || !acceptsGzip(headers.get(HeaderMap.ACCEPT_ENCODING))) {
+      return entry;
+    }
+    if (entry.gzip != null) {
+      WebServer.logln("Sending gzip sidecar: " + entry.gzip.file.getAbsolutePath());
+      return entry.gzip;
+    }
+    if (headers.contains(HeaderMap.RANGE)) {
+      return entry;
+    }
+    try {
+      return entry.compressed(WebServer.cache, resource);
+    } catch (IOException io) {
+      WebServer.logln("Failed to compress " + entry.file.getAbsolutePath());
+      return entry;
+    }
+  }
+
+  /**
+   * Checks whether an Accept-Encoding option allows gzip, ie 'gzip, deflate' or 'br;q=1.0, *;q=0.5'.
+   * A coding with a q value of 0 is one the client does not accept.
+   * @param acceptEncoding The Accept-Encoding option or null.
+   * @return True if a gzip body can be sent.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean accepted = false;
+    for (String coding : acceptEncoding.split(",")) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+      boolean gzip = name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip");
+      if (!gzip && !name.equals("*")) {
+        continue;
+      }
+      boolean allowed = semicolon < 0 || !zeroQuality(coding.substring(semicolon + 1));
+      if (gzip) {
+        // Naming gzip itself outranks any wildcard.
+        return allowed;
+      }
+      accepted = allowed;
+    }
+    return accepted;
+  }
+
+  /**
+   * @return True if the parameters of a coding give it a q value of 0, ie 'q=0' or 'q=0.000'.
+   */
+  private static boolean zeroQuality(String parameters) {
+    for (String parameter : parameters.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) == 0;
+        } catch (NumberFormatException nf) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the file for the requested resource, from the file cache when it holds it, otherwise through
+   * the index of the public directory, or failing that by checking the disk. Without an index the
+   * resources that could not be found are remembered for a while, so checking the disk for them is not
+   * repeated on every request.
+   * @return The cache entry for the file, which is only kept in the cache when caching is on.
+   */
+  private FileCache.Entry findFile() throws WebServer.NotFoundException {
+    FileCache cache = WebServer.cache;
+    if (cache != null) {
+      FileCache.Entry entry = cache.get(resource);
+      if (entry != null) {
+        WebServer.logln("Found in cache: " + entry.file.getAbsolutePath());
+        return entry;
+      }
+    }
+
+    DocumentIndex index = WebServer.index;
+    if (index != null) {
+      DocumentIndex.Node node = index.lookup(resource);
+      if (node == null) {
+        WebServer.logln("Not in index: " + resource);
+        throw WebServer.NotFoundException.INSTANCE;
+      }
+      WebServer.logln("Found in index: " + node.file.getAbsolutePath());
+      resourceFile = node.file;
+      return load(node, node.contentType, node.length);
+    }
+
+    NotFoundCache notFound = WebServer.notFound;
+    if (notFound != null && notFound.contains(resource)) {
+      WebServer.logln("Known to be missing: " + resource);
+      throw WebServer.NotFoundException.INSTANCE;
+    }
+
+    String resourcePath = resourceFile.getAbsolutePath();
+    int checkDefault = -1;
+
+    WebServer.logln("Requested file: " + resourcePath);
+    WebServer.log("Checking file... ");
+
+    while (true) {
+      if (resourceFile.exists() && resourceFile.isFile() && resourceFile.canRead()) {
+        WebServer.logln("Found");
+        return load(null, getContentType(resourceFile), resourceFile.length());
+      } else {
+        // If the file object points to a directory check that directory for the default files.
+        if (++checkDefault < WebServer.DEFAULT_FILES.length) {
+          WebServer.log("Not Found\r\nChecking " + WebServer.DEFAULT_FILES[checkDefault] + "... ");
+          resourceFile = new File(resourcePath + File.separator + WebServer.DEFAULT_FILES[checkDefault]);
+        } else {
+          // Once it has checked all the default files and not found them.
+          WebServer.logln("Not found");
+          if (notFound != null) {
+            notFound.add(resource);
+          }
+          throw WebServer.NotFoundException.INSTANCE;
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes the entry for the file that was found, and adds it to the cache when caching is on. A file
+   * from the index gets its entry from what the index knows, without asking the disk again.
+   * @param node The file in the index, or null if it was found on the disk.
+   * @param contentType The MIME type of the file.
+   * @param length The length of the file when it was found.
+   * @return The entry.
+   */
+  private FileCache.Entry load(DocumentIndex.Node node, String contentType, long length) throws WebServer.NotFoundException {
+    FileCache cache = WebServer.cache;
+    try {
+      // Only small files are worth holding in memory, large ones are sent with transferTo anyway.
+      boolean readBody = cache != null && length < WebServer.config.sendfileThreshold;
+      // Compressing is only worth it when the result is kept for the requests that follow.
+      boolean compress = cache != null && WebServer.config.gzip;
+      FileCache.Entry entry = node != null ? FileCache.Entry.indexed(node, readBody, compress)
+          : new FileCache.Entry(resourceFile, contentType, readBody, compress);
+      if (cache != null) {
+        cache.put(resource, entry);
+      }
+      return entry;
+    } catch (IOException io) {
+      // Also the case when an indexed file has gone and the new index is not in yet.
+      WebServer.logln("Failed to read " + resourceFile.getAbsolutePath());
+      throw WebServer.NotFoundException.INSTANCE;
+    }
+  }
+
+  /**
+   * Given a file object return the MIME type of that file, from the types loaded from mime.types.
+   * Files with an extension that is not listed are application/octet-stream.
+   * @param resource The file object.
+   * @return The MIME type.
+   */
+  static String getContentType(File resource) {
+    return WebServer.mimeTypes.get(resource.getName());
+  }
+
+  /**
+   * Gets an error response however checks whether the method is HEAD
+   * and therefore only includes the error message if the method is not HEAD.
+   * @param page The error, ie ErrorPage.NOT_FOUND.
+   * @return The response.
+   */
+  private Response respondWithHeadCheck(ErrorPage page) {
+    return page.response(method != null && method.equals("HEAD"), keepAlive);
+  }
+
+  /**
+   * Writes the request information to a log file. The log contains each connection's timestamp, ip,
+   * requested resource and the returned response code. The fields are only handed to the access log
+   * here, they are formatted and written by the log's own thread.
+   * @param response The response that was sent back to the client.
+   * @param clientAddress The address of the client.
+   */
+  public void logRequest(Response response, InetAddress clientAddress) {
+    AccessLog log = WebServer.accessLog;
+    if (log == null) {
+      return;
+    }
+    if (method != null && resource != null && version != null) {
+      log.log(received, clientAddress, method, resource, version, null, response.statusLine, response.length());
+    } else {
+      // The log can only rebuild request lines that parsed, so keep the others as they were received.
+      log.log(received, clientAddress, null, null, null, request.getRequestLine(), response.statusLine, response.length());
+    }
+  }
+}
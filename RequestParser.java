@@ -0,0 +1,306 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Reads and frames the header of a HTTP request. Bytes are read in bulk into one buffer that is kept
+ * for the life of the connection, and the end of each line is found by scanning that buffer rather
+ * than reading a byte at a time. The lines are recorded as offsets into the buffer, so the method and
+ * version come back as the shared constant strings, the header lines are indexed into a HeaderMap and
+ * only the values that are asked for are turned into Strings.
+ */
+public class RequestParser {
+  public static final int MAX_LINES = 64;
+  public static final int MAX_LINE = 32768;
+  public static final int MAX_HEADER = 65536;
+  private static final int INITIAL_SIZE = 4096;
+
+  private static final byte[] HTTP = "HTTP/".getBytes();
+
+  private byte[] buffer = null;
+  private ByteBuffer channelView = null;
+  private int end = 0;          // End of the bytes read into the buffer.
+  private int scan = 0;         // How far the buffer has been searched for line ends.
+  private int lineStart = 0;
+  private int zeroCount = 0;
+  private int headerEnd = -1;   // Just after the blank line once the header is complete.
+  private boolean truncated = false;
+
+  private final int[] lineStarts = new int[MAX_LINES];
+  private final int[] lineEnds = new int[MAX_LINES];
+  private int lineCount = 0;
+  private final HeaderMap headers = new HeaderMap();
+
+  // Slices of the request line, set by parseRequestLine.
+  private String method = null;
+  private int targetStart = 0;
+  private int targetEnd = 0;
+  private String target = null;
+  private String version = null;
+
+  /**
+   * Reads whatever is available from a blocking stream into the buffer.
+   * @param in The stream from the client.
+   * @return The number of bytes read or -1 at the end of the stream.
+   */
+  public int fill(InputStream in) throws IOException {
+    ensureSpace();
+    int rc = in.read(buffer, end, buffer.length - end);
+    if (rc > 0) {
+      end += rc;
+    }
+    return rc;
+  }
+
+  /**
+   * Reads whatever is available from a channel into the buffer.
+   * @param in The channel from the client.
+   * @return The number of bytes read, 0 when nothing was available or -1 at the end of the stream.
+   */
+  public int fill(ReadableByteChannel in) throws IOException {
+    ensureSpace();
+    channelView.limit(buffer.length).position(end);
+    int rc = in.read(channelView);
+    if (rc > 0) {
+      end += rc;
+    }
+    return rc;
+  }
+
+  /**
+   * Makes sure there is room to read more into the buffer, allocating it on first use so a connection
+   * that has not sent anything yet does not hold a buffer.
+   */
+  private void ensureSpace() throws IOException {
+    if (buffer == null) {
+      buffer = new byte[INITIAL_SIZE];
+      channelView = ByteBuffer.wrap(buffer);
+    } else if (end == buffer.length) {
+      if (buffer.length >= MAX_HEADER) {
+        throw new IOException("Request header is larger than " + MAX_HEADER + " bytes.");
+      }
+      byte[] bigger = new byte[Math.min(buffer.length * 2, MAX_HEADER)];
+      System.arraycopy(buffer, 0, bigger, 0, end);
+      buffer = bigger;
+      channelView = ByteBuffer.wrap(buffer);
+    }
+  }
+
+  /**
+   * Searches the bytes read so far for the ends of the header lines.
+   * @return True once the blank line, or the maximum number of lines, has been read.
+   */
+  public boolean parse() throws IOException {
+    if (headerEnd >= 0) {
+      return true;
+    }
+    byte[] b = buffer;
+    for (int i = scan; i < end; i++) {
+      byte c = b[i];
+      if (c == '\n') {
+        int lineEnd = (i > lineStart && b[i - 1] == '\r') ? i - 1 : i;
+        if (lineEnd == lineStart) {
+          return complete(i + 1);
+        }
+        lineStarts[lineCount] = lineStart;
+        lineEnds[lineCount] = lineEnd;
+        if (WebServer.LOGGING) {
+          WebServer.logln("(" + lineCount + ") " + new String(b, lineStart, lineEnd - lineStart));
+        }
+        lineStart = i + 1;
+        zeroCount = 0;
+        if (++lineCount == MAX_LINES) {
+          truncated = true;
+          return complete(i + 1);
+        }
+      } else if (c == 0) {
+        // Some browsers open connections that only send an 'empty' stream of zeros, drop them rather than
+        // waiting for a line that never comes.
+        if (++zeroCount > 16) {
+          throw new IOException("Connection flooded with zeros.");
+        }
+      } else if (i - lineStart >= MAX_LINE) {
+        throw new IOException("Request line longer than " + MAX_LINE + " bytes.");
+      }
+    }
+    scan = end;
+    return false;
+  }
+
+  /**
+   * Gets ready for the next request on the same connection. Any bytes already read after this header
+   * are the start of the next request so they are moved to the front of the buffer. The buffer is kept
+   * unless it had to grow for an unusually large header.
+   */
+  public void next() {
+    int remaining = end - headerEnd;
+    if (remaining > 0) {
+      System.arraycopy(buffer, headerEnd, buffer, 0, remaining);
+    }
+    end = remaining;
+    scan = 0;
+    lineStart = 0;
+    zeroCount = 0;
+    headerEnd = -1;
+    truncated = false;
+    lineCount = 0;
+    method = null;
+    targetStart = 0;
+    targetEnd = 0;
+    target = null;
+    version = null;
+    headers.clear();
+    if (remaining == 0 && buffer != null && buffer.length > INITIAL_SIZE) {
+      release();
+    }
+  }
+
+  /**
+   * Drops the buffer while the connection waits for its next request, it is allocated again when
+   * bytes arrive. Does nothing if part of the next request has already been read.
+   */
+  public void release() {
+    if (end == 0) {
+      buffer = null;
+      channelView = null;
+    }
+  }
+
+  /**
+   * @return True when part of a request that has not been parsed yet is in the buffer.
+   */
+  public boolean hasBufferedBytes() {
+    return end > 0;
+  }
+
+  /**
+   * @return True when the header had more than MAX_LINES lines and the rest were not read, so the
+   * connection cannot be used for another request.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * Marks the header as complete and splits up the request line.
+   * @param headerEnd The position just after the last line of the header.
+   * @return True.
+   */
+  private boolean complete(int headerEnd) {
+    this.headerEnd = headerEnd;
+    scan = headerEnd;
+    parseRequestLine();
+    for (int l = 1; l < lineCount; l++) {
+      headers.add(buffer, lineStarts[l], lineEnds[l]);
+    }
+    return true;
+  }
+
+  /**
+   * Splits the request line into the method, target and version. Any part that is not valid is left
+   * as null so RequestHandler can answer with a 400.
+   */
+  private void parseRequestLine() {
+    if (lineCount == 0) {
+      return;
+    }
+    int start = lineStarts[0];
+    int lineEnd = lineEnds[0];
+    int firstSpace = indexOf(' ', start, lineEnd);
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1, lineEnd);
+    if (secondSpace < 0 || indexOf(' ', secondSpace + 1, lineEnd) >= 0) {
+      return;
+    }
+    method = WebServer.validMethod(buffer, start, firstSpace);
+    if (firstSpace + 1 < secondSpace && buffer[firstSpace + 1] == '/') {
+      targetStart = firstSpace + 1;
+      targetEnd = secondSpace;
+    }
+    if (regionMatches(secondSpace + 1, lineEnd, HTTP)) {
+      int v = secondSpace + 1 + HTTP.length;
+      if (lineEnd - v == 3 && buffer[v] == '1' && buffer[v + 1] == '.' && buffer[v + 2] == '1') {
+        version = "1.1";
+      } else if (lineEnd - v == 3 && buffer[v] == '1' && buffer[v + 1] == '.' && buffer[v + 2] == '0') {
+        version = "1.0";
+      } else {
+        version = new String(buffer, v, lineEnd - v);
+      }
+    }
+  }
+
+  private int indexOf(char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean regionMatches(int from, int to, byte[] prefix) {
+    if (to - from < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer[from + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The method if it is a valid HTTP method, otherwise null.
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return The requested resource if it starts with a '/', otherwise null.
+   */
+  public String getTarget() {
+    if (target == null && targetEnd > targetStart) {
+      target = new String(buffer, targetStart, targetEnd - targetStart);
+    }
+    return target;
+  }
+
+  /**
+   * @return The HTTP version without the 'HTTP/', ie '1.1', or null if the request line has no valid version.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * @return The request line as a string, or an empty string if there was no request line.
+   */
+  public String getRequestLine() {
+    if (lineCount == 0) {
+      return "";
+    }
+    return new String(buffer, lineStarts[0], lineEnds[0] - lineStarts[0]);
+  }
+
+  /**
+   * @return The header lines indexed by name.
+   */
+  public HeaderMap getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return The buffer holding the raw header.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return The length of the raw header at the start of the buffer, including the blank line.
+   */
+  public int getHeaderLength() {
+    return headerEnd;
+  }
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A response ready to be sent to the client. The HTTP header is held as the status line and the
+ * option lines after the Date and Connection options, which are the only parts that change from one
+ * response to the next and are filled in as the header is written. The message body is either held
+ * in memory or is a file, or ranges of one, to be sent, or neither for HEAD requests.
+ */
+public class Response {
+  public static final byte[] OK = "HTTP/1.1 200 OK\r\n".getBytes();
+  public static final byte[] PARTIAL_CONTENT = "HTTP/1.1 206 Partial Content\r\n".getBytes();
+  public static final byte[] NOT_MODIFIED = "HTTP/1.1 304 Not Modified\r\n".getBytes();
+  public static final byte[] BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\n".getBytes();
+  public static final byte[] NOT_FOUND = "HTTP/1.1 404 Not Found\r\n".getBytes();
+  public static final byte[] RANGE_NOT_SATISFIABLE = "HTTP/1.1 416 Range Not Satisfiable\r\n".getBytes();
+  public static final byte[] NOT_IMPLEMENTED = "HTTP/1.1 501 Not Implemented\r\n".getBytes();
+  public static final byte[] SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n".getBytes();
+  // Every status line the server sends, used to turn a status code back into its text.
+  private static final byte[][] STATUS_LINES = {
+    OK, PARTIAL_CONTENT, NOT_MODIFIED, BAD_REQUEST, NOT_FOUND, RANGE_NOT_SATISFIABLE, NOT_IMPLEMENTED, SERVICE_UNAVAILABLE
+  };
+
+  private static final byte[] DATE = "Date: ".getBytes();
+  private static final byte[] KEEP_ALIVE = "\r\nConnection: keep-alive\r\n".getBytes();
+  private static final byte[] CLOSE = "\r\nConnection: close\r\n".getBytes();
+
+  public final byte[] statusLine;
+  public final byte[] options;
+  public final byte[] body;
+  public final File file;
+  // The parts of the file to send as offset and length pairs, the whole file unless a range was asked for.
+  public final long[] ranges;
+  // For a multipart/byteranges body, the part header sent before each range followed by the closing boundary.
+  public final byte[][] parts;
+  public final boolean keepAlive;
+
+  /**
+   * Creates a response with the message body held in memory.
+   * @param statusLine The status line including its line end, ie Response.OK.
+   * @param options The option lines that follow Date and Connection, including the blank line that ends the header.
+   * @param body The message body or null.
+   * @param keepAlive True if the connection stays open for another request after this response.
+   */
+  public Response(byte[] statusLine, byte[] options, byte[] body, boolean keepAlive) {
+    this(statusLine, options, body, null, null, null, keepAlive);
+  }
+
+  /**
+   * Creates a response with a file as the message body.
+   * @param statusLine The status line including its line end, ie Response.OK.
+   * @param options The option lines that follow Date and Connection, including the blank line that ends the header.
+   * @param file The file to send as the message body.
+   * @param fileLength The length of the file as given in the Content-Length option.
+   * @param keepAlive True if the connection stays open for another request after this response.
+   */
+  public Response(byte[] statusLine, byte[] options, File file, long fileLength, boolean keepAlive) {
+    this(statusLine, options, null, file, new long[] { 0, fileLength }, null, keepAlive);
+  }
+
+  /**
+   * Creates a response with parts of a file as the message body.
+   * @param statusLine The status line including its line end, ie Response.PARTIAL_CONTENT.
+   * @param options The option lines that follow Date and Connection, including the blank line that ends the header.
+   * @param file The file to send parts of.
+   * @param ranges The offset and length of each part in pairs.
+   * @param parts The part headers before each range and the closing boundary after them, or null for a single range.
+   * @param keepAlive True if the connection stays open for another request after this response.
+   */
+  public Response(byte[] statusLine, byte[] options, File file, long[] ranges, byte[][] parts, boolean keepAlive) {
+    this(statusLine, options, null, file, ranges, parts, keepAlive);
+  }
+
+  private Response(byte[] statusLine, byte[] options, byte[] body, File file, long[] ranges, byte[][] parts,
+      boolean keepAlive) {
+    this.statusLine = statusLine;
+    this.options = options;
+    this.body = body;
+    this.file = file;
+    this.ranges = ranges;
+    this.parts = parts;
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * @return The number of bytes in the header.
+   */
+  public int headLength() {
+    return statusLine.length + DATE.length + HttpDate.nowBytes().length
+        + (keepAlive ? KEEP_ALIVE.length : CLOSE.length) + options.length;
+  }
+
+  /**
+   * @return The number of bytes in the whole response, header and body.
+   */
+  public long length() {
+    long length = headLength() + (body != null ? body.length : 0);
+    for (int i = 1; ranges != null && i < ranges.length; i += 2) {
+      length += ranges[i];
+    }
+    for (int i = 0; parts != null && i < parts.length; i++) {
+      length += parts[i].length;
+    }
+    return length;
+  }
+
+  /**
+   * Writes the header into an array, which must have headLength bytes free.
+   * @param dst The array to write to.
+   * @param offset Where to start writing.
+   * @return The index just after the header.
+   */
+  public int writeHead(byte[] dst, int offset) {
+    offset = put(statusLine, dst, offset);
+    offset = put(DATE, dst, offset);
+    offset = put(HttpDate.nowBytes(), dst, offset);
+    offset = put(keepAlive ? KEEP_ALIVE : CLOSE, dst, offset);
+    return put(options, dst, offset);
+  }
+
+  /**
+   * Writes the header into a buffer, which must have headLength bytes remaining.
+   * @param dst The buffer to write to.
+   */
+  public void writeHead(ByteBuffer dst) {
+    dst.put(statusLine).put(DATE).put(HttpDate.nowBytes()).put(keepAlive ? KEEP_ALIVE : CLOSE).put(options);
+  }
+
+  private static int put(byte[] src, byte[] dst, int offset) {
+    System.arraycopy(src, 0, dst, offset, src.length);
+    return offset + src.length;
+  }
+
+  /**
+   * Renders the header and the in memory body, if any, together.
+   * @return The bytes to send.
+   */
+  public byte[] toBytes() {
+    int length = headLength();
+    byte[] bytes = new byte[length + (body != null ? body.length : 0)];
+    writeHead(bytes, 0);
+    if (body != null) {
+      put(body, bytes, length);
+    }
+    return bytes;
+  }
+
+  /**
+   * @param statusLine One of the status lines, ie Response.NOT_FOUND.
+   * @return Its status code, ie 404.
+   */
+  public static int statusCode(byte[] statusLine) {
+    return (statusLine[9] - '0') * 100 + (statusLine[10] - '0') * 10 + (statusLine[11] - '0');
+  }
+
+  /**
+   * @param statusLine One of the status lines, ie Response.NOT_FOUND.
+   * @return Just its code and description, ie 404 Not Found.
+   */
+  public static String statusText(byte[] statusLine) {
+    // Skip 'HTTP/1.1 ' and leave off the line end.
+    return new String(statusLine, 9, statusLine.length - 11);
+  }
+
+  /**
+   * Gets the text of the status line the server sends for a status code.
+   * @param code The status code, ie 404.
+   * @return The code and its description, ie 404 Not Found, or just the code if the server never sends it.
+   */
+  public static String statusText(int code) {
+    for (byte[] line : STATUS_LINES) {
+      if (statusCode(line) == code) {
+        return statusText(line);
+      }
+    }
+    return Integer.toString(code);
+  }
+
+  /**
+   * @return The header as text, for logging.
+   */
+  public String toString() {
+    byte[] head = new byte[headLength()];
+    writeHead(head, 0);
+    return new String(head);
+  }
+}
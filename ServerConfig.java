@@ -0,0 +1,250 @@
+/**
+ * Start up options for the web server. Holds the defaults and parses the optional
+ * command line arguments that follow the port number, ie 'WebServer 8080 -threads 32'.
+ */
+public class ServerConfig {
+  public static final String USAGE = "Usage: WebServer port [options]\n"
+      + "  -engine name        'threads' for the worker pool, 'virtual' for a virtual thread per connection,\n"
+      + "                      'nio' for non-blocking event loops (default threads)\n"
+      + "  -loops n            Number of event loops for the nio engine (default one per core)\n"
+      + "  -threads n          Number of worker threads (default 64)\n"
+      + "  -queue n            Connections allowed to wait for a worker (default 256)\n"
+      + "  -overflow policy    'reject' sends 503 when the queue is full, 'block' stops accepting (default reject)\n"
+      + "  -keepalive n        Maximum requests served on one connection, 1 turns keep-alive off (default 100)\n"
+      + "  -idle ms            Time a connection may wait for its next request before it is closed (default 5000)\n"
+      + "  -sendfile bytes     Files of at least this size are sent with zero-copy transferTo (default 65536)\n"
+      + "  -cache bytes        Memory for the file cache, 0 turns it off (default 33554432)\n"
+      + "  -buffers bytes      Memory for the pool of direct buffers responses are written from, beyond it\n"
+      + "                      buffers are allocated as needed and counted as misses (default 16777216)\n"
+      + "  -bufferdebug on|off Track every pooled buffer, reporting ones released twice or held for longer\n"
+      + "                      than a minute with where they were acquired (default off)\n"
+      + "  -mimetypes file     The MIME types of files by extension, in the mime.types format (default\n"
+      + "                      " + MimeTypes.DEFAULT_FILE + ", or a few built in types if there is no such file)\n"
+      + "  -index on|off       Resolve requests through a snapshot of " + WebServer.PUBLIC_DIR + " made at start up and\n"
+      + "                      rebuilt when it changes, instead of checking the disk (default on)\n"
+      + "  -notfound seconds   How long a missing resource is answered from memory when there is no index,\n"
+      + "                      0 turns it off (default 10)\n"
+      + "  -precompress on|off Write gzip sidecars for compressible files before starting, as Precompress\n"
+      + "                      does (default off)\n"
+      + "  -gzip on|off        Compress text files without a sidecar the first time a client accepts gzip,\n"
+      + "                      keeping the result in the cache. Files over 64 KB are compressed in the\n"
+      + "                      background and sent uncompressed until that is done (default on)\n"
+      + "  -logring n          Access log lines that can wait to be written (default 8192)\n"
+      + "  -logfull policy     'block' makes requests wait when the log falls behind, 'drop' drops their\n"
+      + "                      lines and counts them (default block)\n"
+      + "  -logformat name     'text' for lines of text, 'binary' for compact records that LogConverter\n"
+      + "                      turns back into text (default text)\n"
+      + "  -logsize bytes      Rotate the access log when it reaches this size, 0 for no limit (default 67108864)\n"
+      + "  -logage seconds     Rotate the access log when it is this old, 0 for no limit (default 86400)\n"
+      + "  -logretain bytes    Space the rotated and compressed logs may take up (default 1073741824)\n"
+      + "  -status path        Serve the server counters at the given path (default off)";
+
+  // The largest number of seconds an option takes, about 68 years.
+  public static final long MAX_SECONDS = Integer.MAX_VALUE;
+
+  public int port = -1;
+  public String engine = "threads";
+  public int threads = 64;
+  public int loops = Runtime.getRuntime().availableProcessors();
+  public int queueLength = 256;
+  public boolean blockWhenFull = false;
+  public int maxRequests = 100;
+  public int idleTimeout = 5000;
+  public long sendfileThreshold = 65536;
+  public long cacheBytes = 32 * 1024 * 1024;
+  public long bufferBytes = 16 * 1024 * 1024;
+  public boolean bufferDebug = false;
+  public String mimeTypesFile = MimeTypes.DEFAULT_FILE;
+  public boolean index = true;
+  public long notFoundSeconds = 10;
+  public boolean precompress = false;
+  public boolean gzip = true;
+  public int logRing = 8192;
+  public boolean dropLogWhenFull = false;
+  public boolean binaryLog = false;
+  public long logRotateBytes = 64 * 1024 * 1024;
+  public long logRotateSeconds = 24 * 60 * 60;
+  public long logRetainBytes = 1024 * 1024 * 1024;
+  public String statusPath = null;
+
+  /**
+   * Parses the command line arguments into a new config.
+   * @param args The port number followed by any options.
+   * @return The config.
+   * @throws IllegalArgumentException When an option or its value is not valid, the message describes the problem.
+   */
+  public static ServerConfig parse(String[] args) {
+    if (args.length < 1) {
+      throw new IllegalArgumentException("No port number given.");
+    }
+    ServerConfig config = new ServerConfig();
+    try {
+      config.port = Integer.parseInt(args[0]);
+    } catch (NumberFormatException nf) {
+      throw new IllegalArgumentException("Port number given is not a number.");
+    }
+    if (config.port < 0 || config.port > 65535) {
+      throw new IllegalArgumentException("Port number must be between 0 65535.");
+    }
+
+    for (int i = 1; i < args.length; i += 2) {
+      String option = args[i];
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("No value given for " + option + ".");
+      }
+      String value = args[i + 1];
+      switch (option) {
+        case "-engine" :
+          if (!value.equals("threads") && !value.equals("virtual") && !value.equals("nio")) {
+            throw new IllegalArgumentException(option + " must be 'threads', 'virtual' or 'nio'.");
+          }
+          config.engine = value;
+          break;
+        case "-threads" :
+          config.threads = positive(option, value);
+          break;
+        case "-loops" :
+          config.loops = positive(option, value);
+          break;
+        case "-queue" :
+          config.queueLength = positive(option, value);
+          break;
+        case "-overflow" :
+          config.blockWhenFull = choice(option, value, "block", "reject");
+          break;
+        case "-keepalive" :
+          config.maxRequests = positive(option, value);
+          break;
+        case "-idle" :
+          config.idleTimeout = positive(option, value);
+          break;
+        case "-sendfile" :
+          config.sendfileThreshold = positive(option, value);
+          break;
+        case "-cache" :
+          config.cacheBytes = notNegative(option, value);
+          break;
+        case "-buffers" :
+          config.bufferBytes = notNegative(option, value);
+          break;
+        case "-bufferdebug" :
+          config.bufferDebug = choice(option, value, "on", "off");
+          break;
+        case "-mimetypes" :
+          config.mimeTypesFile = value;
+          break;
+        case "-index" :
+          config.index = choice(option, value, "on", "off");
+          break;
+        case "-notfound" :
+          config.notFoundSeconds = seconds(option, value);
+          break;
+        case "-precompress" :
+          config.precompress = choice(option, value, "on", "off");
+          break;
+        case "-gzip" :
+          config.gzip = choice(option, value, "on", "off");
+          break;
+        case "-logring" :
+          config.logRing = positive(option, value);
+          break;
+        case "-logfull" :
+          config.dropLogWhenFull = choice(option, value, "drop", "block");
+          break;
+        case "-logformat" :
+          config.binaryLog = choice(option, value, "binary", "text");
+          break;
+        case "-logsize" :
+          config.logRotateBytes = notNegative(option, value);
+          break;
+        case "-logage" :
+          config.logRotateSeconds = seconds(option, value);
+          break;
+        case "-logretain" :
+          config.logRetainBytes = notNegative(option, value);
+          break;
+        case "-status" :
+          if (!value.startsWith("/")) {
+            throw new IllegalArgumentException(option + " must be a path starting with '/'.");
+          }
+          config.statusPath = value;
+          break;
+        default :
+          throw new IllegalArgumentException("Unknown option " + option + ".");
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Parses a number that must be greater than zero.
+   * @param option The option name, used in the error message.
+   * @param value The value to parse.
+   * @return The number.
+   */
+  private static int positive(String option, String value) {
+    try {
+      int n = Integer.parseInt(value);
+      if (n > 0) {
+        return n;
+      }
+    } catch (NumberFormatException nf) {
+      // Fall through to the error below.
+    }
+    throw new IllegalArgumentException(option + " must be a number greater than 0.");
+  }
+
+  /**
+   * Parses a number that must be zero or more.
+   * @param option The option name, used in the error message.
+   * @param value The value to parse.
+   * @return The number.
+   */
+  private static long notNegative(String option, String value) {
+    try {
+      long n = Long.parseLong(value);
+      if (n >= 0) {
+        return n;
+      }
+    } catch (NumberFormatException nf) {
+      // Fall through to the error below.
+    }
+    throw new IllegalArgumentException(option + " must be a number of 0 or more.");
+  }
+
+  /**
+   * Parses a number of seconds that must be zero or more and small enough that it can be turned into
+   * milliseconds and added to the current time without overflowing.
+   * @param option The option name, used in the error message.
+   * @param value The value to parse.
+   * @return The number of seconds.
+   */
+  private static long seconds(String option, String value) {
+    try {
+      long n = Long.parseLong(value);
+      if (n >= 0 && n <= MAX_SECONDS) {
+        return n;
+      }
+    } catch (NumberFormatException nf) {
+      // Fall through to the error below.
+    }
+    throw new IllegalArgumentException(option + " must be a number of seconds from 0 to " + MAX_SECONDS + ".");
+  }
+
+  /**
+   * Parses a value that must be one of two words.
+   * @param option The option name, used in the error message.
+   * @param value The value to parse.
+   * @param yes The word meaning true.
+   * @param no The word meaning false.
+   * @return True for the first word, false for the second.
+   */
+  private static boolean choice(String option, String value, String yes, String no) {
+    if (value.equals(yes)) {
+      return true;
+    } else if (value.equals(no)) {
+      return false;
+    }
+    throw new IllegalArgumentException(option + " must be '" + yes + "' or '" + no + "'.");
+  }
+}
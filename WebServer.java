@@ -1,7 +1,12 @@
 import java.io.*;
 import java.net.*;
-import java.util.*;
-import java.text.SimpleDateFormat;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A java web server implementing GET, HEAD and TRACE HTTP requests.
@@ -13,22 +18,32 @@ public class WebServer implements Runnable {
   public static final String PUBLIC_DIR = "www";
   public static final String[] DEFAULT_FILES = new String[] { "index.html", "index.htm" };
   public static final String SERVER_LOG = "access-log.txt";
+  public static final String BINARY_SERVER_LOG = "access-log.bin";
 
   public static final String[] VALID_METHODS = new String[] { "OPTIONS", "GET", "HEAD", "POST", "PUT", "DELETE", "TRACE", "CONNECT" };
 
+  // Server wide state, set up once in main.
+  static ServerConfig config = new ServerConfig();
+  static WorkerPool workers = null;
+  static FileCache cache = null;
+  // Replaced whole by the file watcher whenever the public directory changes.
+  static volatile DocumentIndex index = null;
+  static NotFoundCache notFound = null;
+  static MimeTypes mimeTypes = MimeTypes.builtIn();
+  static final AtomicInteger openConnections = new AtomicInteger();
+  static AccessLog accessLog = null;
+
   // Connection
   private Socket sock = null;
   private InputStream fromClient = null;
-  private OutputStream toClient = null;
+  private SocketChannel toClient = null;
 
-  private Calendar timestamp = null;
-  private String date = null;
-  private String[] headerLines = null;
-  private String method = null;
-  private String resource = null;
-  private String version  = null;
-  private File resourceFile = null;
-  private SimpleDateFormat dateOptionFormat = null;
+  private final RequestParser request = new RequestParser();
+  // Responses are collected here and only written when full or when the client is waiting for them.
+  // A direct buffer from the pool, only held from the first response of a burst until the burst has been
+  // written, so a connection waiting for its next request holds none.
+  private static final int OUT_SIZE = 65536;
+  private ByteBuffer out = null;
 
   /**
    * Creates a new connection for a single client this will run in its own thread.
@@ -41,404 +56,309 @@ public class WebServer implements Runnable {
   /**
    * The main server program, can be started in the terminal with a port number 
    * to run the server on.
-   * @param args Command line arguments, only accepts one number between (0-65535) 
-   * for setting the port number of the server.
+   * @param args Command line arguments, a number between (0-65535) for setting the port 
+   * number of the server followed by any of the options listed in ServerConfig.USAGE.
    */
   public static void main(String args[]) throws Exception {
-  	if (args.length != 1) {
-  	  System.out.println("Usage: WebServer port");
-  	  System.exit(1);
-  	}
-  	// Start a server on a given port number.
-  	int port = -1;
-  	ServerSocket serverSock = null;
   	try {
-  		port = Integer.parseInt(args[0]);
-  		serverSock = new ServerSocket(port);
-  	} catch (NumberFormatException nf) {
-  		System.out.println("Port number given is not a number.");
-  		System.exit(1);
+  		config = ServerConfig.parse(args);
   	} catch (IllegalArgumentException ia) {
-  		System.out.println("Port number must be between 0 65535.");
+  		System.out.println(ia.getMessage());
+  		System.out.println(ServerConfig.USAGE);
   		System.exit(1);
+  	}
+  	try {
+  		Path logPath = Paths.get(config.binaryLog ? BINARY_SERVER_LOG : SERVER_LOG);
+  		LogRotator rotator = null;
+  		if (config.logRotateBytes > 0 || config.logRotateSeconds > 0) {
+  			rotator = new LogRotator(logPath, config.logRotateBytes,
+  					config.logRotateSeconds * 1000L, config.logRetainBytes);
+  			rotator.start();
+  		}
+  		final AccessLog log = new AccessLog(logPath, config.binaryLog, config.logRing, config.dropLogWhenFull, rotator);
+  		log.start();
+  		Runtime.getRuntime().addShutdownHook(new Thread() {
+  			public void run() {
+  				log.shutdown();
+  			}
+  		});
+  		accessLog = log;
+  	} catch (IOException io) {
+  		System.out.println("ERROR: Cannot open the access log, requests will not be logged.");
+  	}
+  	try {
+  		// Loaded before anything is indexed, cached or compressed, as they all keep the types they see.
+  		mimeTypes = MimeTypes.loadOrBuiltIn(Paths.get(config.mimeTypesFile));
+  		logln("Loaded " + mimeTypes.size() + " file extensions from " + config.mimeTypesFile);
+  	} catch (IOException io) {
+  		System.out.println("ERROR: Cannot read " + config.mimeTypesFile + ", using the built in MIME types.");
+  	}
+  	if (config.precompress) {
+  		// Done before the cache exists, so every entry it makes already sees the sidecars.
+  		try {
+  			int written = Precompress.compressTree(Paths.get(PUBLIC_DIR), Precompress.MIN_SIZE);
+  			logln("Wrote " + written + " gzip sidecars");
+  		} catch (IOException io) {
+  			System.out.println("ERROR: Cannot precompress " + PUBLIC_DIR + ": " + io.getMessage());
+  		}
+  	}
+  	BufferPool.configure(config.bufferBytes, config.bufferDebug);
+  	if (config.cacheBytes > 0) {
+  		cache = new FileCache(config.cacheBytes);
+  	}
+  	if (!config.index && config.notFoundSeconds > 0) {
+  		notFound = new NotFoundCache(config.notFoundSeconds * 1000L);
+  	}
+  	if (cache != null || config.index || notFound != null) {
+  		try {
+  			// Registered before the index is built, so no change can fall between the two.
+  			FileWatcher watcher = new FileWatcher(Paths.get(PUBLIC_DIR), cache, notFound, config.index);
+  			if (config.index) {
+  				index = DocumentIndex.build(Paths.get(PUBLIC_DIR));
+  				logln("Indexed " + index.size() + " files in " + PUBLIC_DIR);
+  			}
+  			watcher.start();
+  			if (cache != null) {
+  				cache.setWatched();
+  			}
+  		} catch (IOException io) {
+  			// Without a watcher the cache checks each file when it is served instead, and there is no index
+  			// as nothing would keep it up to date.
+  			index = null;
+  			logln("Cannot watch " + PUBLIC_DIR + " for changes: " + io.getMessage());
+  		}
+  	}
+  	if (index == null && notFound == null && config.notFoundSeconds > 0) {
+  		// The index could not be kept up to date, so missing resources are remembered for their time to live.
+  		notFound = new NotFoundCache(config.notFoundSeconds * 1000L);
+  	}
+  	// Start a server on a given port number. Accepting through a channel gives the blocking engines
+  	// sockets with channels too, so files can be sent with transferTo.
+  	ServerSocketChannel serverChannel = null;
+  	try {
+  		serverChannel = ServerSocketChannel.open();
+  		serverChannel.bind(new InetSocketAddress(config.port));
   	} catch (IOException io) {
   		System.out.println("Port number is already in use.");
   		System.exit(1);
   	}
 
-  	logln("Server started on port " + port);
+  	if (config.engine.equals("nio")) {
+  		logln("Server started on port " + config.port + " with " + config.loops + " event loops");
+  		new NioServer(serverChannel, config).run();
+  	}
+
+  	if (config.engine.equals("virtual")) {
+  		ExecutorService virtualThreads = virtualThreadExecutor();
+  		if (virtualThreads == null) {
+  			System.out.println("The virtual engine needs Java 21 or newer.");
+  			System.exit(1);
+  		}
+  		logln("Server started on port " + config.port + " with virtual threads");
+
+  		while(true) {
+  			// Wait for a connection to be made, each one gets its own virtual thread.
+  			Socket conn = serverChannel.accept().socket();
+  			virtualThreads.execute(new WebServer(conn));
+  		}
+  	}
+
+  	workers = new WorkerPool(config.threads, config.queueLength, config.blockWhenFull);
+  	logln("Server started on port " + config.port + " with " + config.threads + " workers");
 
   	while(true) {
   		// Wait for a connection to be made.
-  		Socket conn = serverSock.accept();
-  		Thread worker = new Thread(new WebServer(conn));
-  		worker.start();
+  		Socket conn = serverChannel.accept().socket();
+  		workers.submit(conn);
   	}
   }
 
   /**
-   * New thread for each client/connection. Reads from the socket, interprets the http request, finds the requested 
-   * file and sends a response back down the socket.
+   * Creates an executor that starts a new virtual thread for each task. Looked up reflectively so
+   * the server still compiles and runs the other engines on releases before Java 21. The state shared
+   * between connections is guarded by ReentrantLocks rather than synchronized, as a virtual thread
+   * that blocks inside synchronized pins its carrier thread.
+   * @return The executor or null if this Java release has no virtual threads.
+   */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Runs on a worker thread for each client/connection. Reads from the socket, hands the http request 
+   * to a RequestHandler and sends its response back down the socket, then waits for the next request
+   * on the same socket until the connection is not kept alive or it is idle for too long.
    */
   public void run() {
     try {
+      openConnections.incrementAndGet();
       try {
-        WebServer.logln("------ Received New Request ------");
-        timestamp = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-        dateOptionFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss");
-        date = dateOptionFormat.format(timestamp.getTime()) + " GMT";
-
-        WebServer.logln("Timestamp: " + date);
-
-        readHeader();
-        if (!validOptionLines()) {
-          throw new BadRequestException();
-        }
-
-        WebServer.logln("\nMethod: " + method
-               + "\nResource: " + resource
-               + "\nVersion: " + version);
-        
-        resourceFile = new File(WebServer.PUBLIC_DIR + resource);
-        
-        switch (method) {
-          case "GET" :
-            get();
-            break;
-          case "HEAD" :
-            head();
-            break;
-          case "TRACE" :
-            trace();
-            break;
-          default :
-            throw new NotImplementedException();
+        // Reads go through the stream, which waits no longer than the idle timeout, writes go straight
+        // from the pooled buffer to the channel.
+        fromClient = sock.getInputStream();
+        toClient = sock.getChannel();
+        sock.setSoTimeout(config.idleTimeout);
+        InetAddress address = sock.getInetAddress();
+        int served = 0;
+        while (readHeader()) {
+          served++;
+          RequestHandler handler = new RequestHandler(request, served < config.maxRequests);
+          Response response = handler.handle();
+          respond(response);
+          handler.logRequest(response, address);
+          if (!response.keepAlive) break;
+          request.next();
         }
-      } catch (BadRequestException br) {
-        String errorResource = "<h1>Bad Request</h1>\r\n";
-        respondWithHeadCheck("HTTP/1.1 400 Bad Request\r\n"
-            + "Date: " + date + "\r\n"
-            + "Connection: close\r\n"
-            + "Server: bws\r\n"
-            + "Content-Length: " + errorResource.length() + "\r\n"
-            + "Content-Type: text/html\r\n"
-            + "\r\n",
-            new ByteArrayInputStream(errorResource.getBytes()));
-        } catch (NotFoundException nf) {
-          String errorResource = "<h1>Page Not Found</h1>\r\n";
-        respondWithHeadCheck("HTTP/1.1 404 Not Found\r\n"
-            + "Date: " + date + "\r\n"
-            + "Connection: close\r\n"
-            + "Server: bws\r\n"
-            + "Content-Length: " + errorResource.length() + "\r\n"
-            + "Content-Type: text/html\r\n"
-            + "\r\n",
-            new ByteArrayInputStream(errorResource.getBytes()));
-      } catch (NotImplementedException ni) {
-        String errorResource = "<h1>Not Implemented</h1>\r\n";
-        respondWithHeadCheck("HTTP/1.1 501 Not Implemented\r\n"
-            + "Date: " + date + "\r\n"
-            + "Connection: close\r\n"
-            + "Server: bws\r\n"
-            + "Content-Length: " + errorResource.length() + "\r\n"
-            + "Content-Type: text/html\r\n"
-            + "\r\n",
-            new ByteArrayInputStream(errorResource.getBytes()));
+        flush();
       } finally {
         close();
+        openConnections.decrementAndGet();
       }
+    } catch (SocketTimeoutException st) {
+      WebServer.logln("Connection idle for longer than " + config.idleTimeout + "ms");
     } catch (IOException io) {
       WebServer.logln("IO ERROR: " + io.getMessage());
     }
   }
 
   /**
-   * Reads the header of a request upto the blank line, puts it in the headerLines array and
-   * checks whether it is a valid request.
-   */
-  private void readHeader() throws BadRequestException, IOException {
-    fromClient = sock.getInputStream();
-
-    String[] headerBuffer = new String[64];
-    String line = null;
-    int lineCount = 0;
-    while (true) {
-      line = readLine(fromClient);
-      if (line.length() == 0) break;
-      headerBuffer[lineCount] = line;
-      WebServer.logln("(" + lineCount + ") " + line);
-      lineCount = lineCount + 1;
-      if (lineCount == 64) break;
-    }
-
-    // Store the header lines from the buffer into the headerLines array
-    headerLines = new String[lineCount];
-    for (int i = 0; i < lineCount; i++) {
-      headerLines[i] = headerBuffer[i];
-    }
-
-    // Check that the request is valid.
-    if (headerLines.length == 0) {
-      throw new BadRequestException();
-    }
-    String[] request = headerLines[0].split(" ");
-    if (request.length != 3 || !WebServer.validMethod(request[0])) {
-      throw new BadRequestException();
-    }
-    method = request[0];
-    resource = request[1];
-    if (!resource.startsWith("/") || !request[2].startsWith("HTTP/")) {
-      throw new BadRequestException();
-    }
-    version = request[2].substring(5);
-  }
-
-  /**
-   * Reads a line at a time from the given input stream.
-   * @param in The input stream to read from.
-   * @return A string containing a line from the input stream.
+   * Reads the header of a request upto the blank line into the request parser. When a pipelining client
+   * has already sent the next request it is parsed from the buffer without waiting, so the responses
+   * collected so far are only written once the server has to wait on the client again.
+   * @return True when a request was read, false if the client closed the connection before starting another.
    */
-  private static String readLine(InputStream in) throws IOException {
-    final int BSIZE = 32768;
-    byte[] buffer = new byte[BSIZE];
-    int byteCount = 0;
-    int zeroCount = 0;
-    // Read one byte at a time looking for the end of line markers.
-    while (true) {
-      int rc = in.read(buffer, byteCount, 1);
-
-      if (buffer[byteCount] == '\n') break;
-      if (buffer[byteCount] != '\r') {
-        // When testing in a browser my read line and previously Scanner read line would freeze and crash after sending the response 
-        // due to a new connection by the browser sending an 'empty' stream of zeros. So the readline's buffer would overflow before
-        // reading a new line. I guess some browsers try to force TCP connections to stay open. This will prevent these connections.
-        // NB when running concurrently this may not be/less of an issue as the worker threads will just die.
-        if (buffer[byteCount] == 0) {
-          if (++zeroCount > 16) {
-            throw new IOException("Connection flooded with zeros.");
-          }
-        }
-
-        if (++byteCount >= BSIZE) {
-          throw new IOException("ReadLine buffer overflow. Increase the size of the buffer.");
+  private boolean readHeader() throws IOException {
+    while (!request.parse()) {
+      flush();
+      // Given back before waiting on the client, which for a kept alive connection can be a long wait.
+      releaseOut();
+      if (request.fill(fromClient) < 0) {
+        if (!request.hasBufferedBytes()) {
+          return false;
         }
+        throw new EOFException("Connection closed before the request was complete.");
       }
     }
-    return new String(buffer, 0, byteCount);
-  }
-
-  /**
-   * Checks whether the option lines are valid for the version of HTTP.
-   * @return True if the options are valid, false if not.
-   */
-  private boolean validOptionLines() {
-    if (version.equals("1.1")) {
-      // version 1.1 requires there to be a Host option.
-      return getOption("host") != null;
-    }
     return true;
   }
 
   /**
-   * Searches the option lines for a given option.
-   * @param option The option name, which is case insensitive, to look for. ie 'host', 'connection'
-   * @return The value of the option or null if the option was not found.
+   * Adds a response's header and body to the responses waiting to be sent to the client, writing them
+   * to the socket whenever the buffer fills.
+   * @param response The response to send to the client.
    */
-  private String getOption(String option) {
-    for (String line : headerLines) {
-      if (line.contains(":")) {
-        String[] l = line.split(":");
-        if (l[0].toLowerCase().equals(option.toLowerCase())) {
-          return l[1].trim();
-        }
-      }
+  private void respond(Response response) throws IOException {
+    WebServer.logln("Sending response...");
+    if (LOGGING) {
+      WebServer.log(response.toString());
     }
-    return null;
-  }
-
-  /**
-   * Responds to a HTTP GET request. Builds the response header for the given file and 
-   * sends the file to the client if it exists.
-   */
-  private void get() throws NotFoundException, IOException {
-    try {
-      respond(buildGetHeader(), new FileInputStream(resourceFile));
-    } catch (FileNotFoundException e) {
-      // new FileInputStream should never fail as buildGetHeader deals with not found files.
-      throw new NotFoundException();
+    if (out == null) {
+      out = BufferPool.acquire(OUT_SIZE);
     }
-  }
-
-  /**
-   * Responds to a HTTP HEAD request. Only sends the HTTP headers without the message body.
-   */
-  private void head() throws NotFoundException, IOException {
-    respond(buildGetHeader(), null);
-  }
+    // The header is written straight into the buffer, with the date of the current second filled in.
+    if (out.remaining() < response.headLength()) {
+      flush();
+    }
+    response.writeHead(out);
 
-  /**
-   * Responds to a HTTP TRACE request. 
-   * Sends the received HTTP headers back to the client as the message body of the response.
-   */
-  private void trace() throws IOException {
-    // Rebuild the header from the array into a string re-adding the new line chars.
-    String received = "";
-    for (String l : headerLines) {
-      received += l + "\r\n";
+    if (response.body != null) {
+      append(response.body);
     }
-    received += "\r\n";
-
-    respond("HTTP/1.1 200 OK\r\n"
-      + "Date: " + date + "\r\n"
-      + "Connection: close\r\n"
-      + "Server: bws\r\n"
-      + "Content-Length: " + received.length() + "\r\n"
-      + "Content-Type: message/http\r\n"
-      + "\r\n",
-      new ByteArrayInputStream(received.getBytes()));
-  }
 
-  /**
-   * Builds the response header from a get request for the given requested file.
-   * @return The header string.
-   */
-  private String buildGetHeader() throws NotFoundException {
-    String resourcePath = resourceFile.getAbsolutePath();
-    int checkDefault = -1;
-
-    WebServer.logln("Requested file: " + resourcePath);
-    WebServer.log("Checking file... ");
-
-    while (true) {
-      if (resourceFile.exists() && resourceFile.isFile() && resourceFile.canRead()) {
-        WebServer.logln("Found");
-        return "HTTP/1.1 200 OK\r\n"
-          + "Date: " + date + "\r\n"
-          + "Connection: close\r\n"
-          + "Server: bws\r\n"
-          + "Last-Modified: " + dateOptionFormat.format(new Date(resourceFile.lastModified())) + " GMT\r\n"
-          + "Content-Length: " + resourceFile.length() + "\r\n"
-          + "Content-Type: " + getContentType(resourceFile) + "\r\n"
-          + "\r\n";
-      } else {
-        // If the file object points to a directory check that directory for the default files.
-        if (++checkDefault < WebServer.DEFAULT_FILES.length) {
-          WebServer.log("Not Found\r\nChecking " + WebServer.DEFAULT_FILES[checkDefault] + "... ");
-          resourceFile = new File(resourcePath + File.separator + WebServer.DEFAULT_FILES[checkDefault]);
-        } else {
-          // Once it has checked all the default files and not found them.
-          WebServer.logln("Not found");
-            throw new NotFoundException();
+    // Send the file, if there is one, or the ranges of it that were asked for.
+    if (response.file != null) {
+      FileChannel file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ);
+      WebServer.log("Sending file... ");
+      try {
+        long[] ranges = response.ranges;
+        for (int i = 0; i < ranges.length; i += 2) {
+          if (response.parts != null) {
+            append(response.parts[i / 2]);
+          }
+          sendRange(file, ranges[i], ranges[i + 1]);
         }
+        if (response.parts != null) {
+          append(response.parts[response.parts.length - 1]);
+        }
+      } finally {
+        file.close();
       }
+      WebServer.logln("Sent");
     }
   }
 
   /**
-   * Given a file object return the MIME type of that file.
-   * Only implements image/jpeg, image/png, text/css, text/javascript,
-   * text/plain and text/html for all other files.
-   * @param resource The file object.
-   * @return The MIME type.
+   * Sends part of a file.
+   * @param file The file.
+   * @param offset Where the part starts.
+   * @param length The number of bytes in the part.
    */
-  private String getContentType(File resource) {
-    try {
-      String path = resource.getAbsolutePath();
-      String ext = path.substring(path.lastIndexOf(".") + 1);
-
-      if (ext.equals("jpeg") || ext.equals("jpg")) {
-        return "image/jpeg";
-      } else if (ext.equals("png")) {
-        return "image/png";
-      } else if (ext.equals("gif")) {
-        return "image/gif";
-      } else if (ext.equals("css")) {
-        return "text/css";
-      } else if (ext.equals("js")) {
-        return "text/javascript";
-      } else if (ext.equals("txt")) {
-        return "text/plain";
-      } else {
-        return "text/html";
+  private void sendRange(FileChannel file, long offset, long length) throws IOException {
+    long position = offset;
+    long end = offset + length;
+    if (length >= config.sendfileThreshold) {
+      // Large files go from the page cache to the socket without being copied through the heap.
+      flush();
+      while (position < end) {
+        long n = file.transferTo(position, end - position, toClient);
+        if (n <= 0) {
+          // The socket would not take any more without blocking, as happens when a virtual thread's
+          // socket is non-blocking underneath. A normal write waits properly, so send a buffer's worth.
+          out.limit((int) Math.min(out.capacity(), end - position));
+          n = file.read(out, position);
+          if (n <= 0) {
+            throw new IOException("File shrank while it was being sent.");
+          }
+          flush();
+        }
+        position += n;
       }
-    } catch (IndexOutOfBoundsException ex) {
-      // If a file ends in a dot, which it shouldn't, substring(... + 1) will fail.
-      return "text/html"; // assume default
-    } 
-  }
-
-  /**
-   * Sends a given header and resource to the client over the socket.
-   * @param header The HTTP header to send to the client.
-   * @param resourceStream An input stream pointing to the resource to send to the client.
-   */
-  private void respond(String header, InputStream resourceStream) throws IOException {
-    WebServer.logln("Sending response...");
-    WebServer.log(header);
-    toClient = sock.getOutputStream();
-    toClient.write(header.getBytes());
-    WebServer.logln("Sent");
-
-    // Send the file, if there is one
-    if (resourceStream != null) {
-      final int BSIZE = 524288; // 524kB
-      byte[] fileBytes = new byte[BSIZE];
-
-      WebServer.log("Sending file... ");
-
-      while (true)
-      {
-        int rc = resourceStream.read(fileBytes, 0, BSIZE);
-        if (rc <= 0) break;
-        toClient.write(fileBytes, 0, rc);
+    } else {
+      // Small files are read straight into the space left in the buffer so they go out in the same
+      // write as their header.
+      while (position < end) {
+        if (!out.hasRemaining()) flush();
+        out.limit((int) Math.min(out.capacity(), out.position() + end - position));
+        int n = file.read(out, position);
+        out.limit(out.capacity());
+        if (n <= 0) {
+          throw new IOException("File shrank while it was being sent.");
+        }
+        position += n;
       }
-      resourceStream.close();
-
-      WebServer.logln("Sent");
     }
-    logRequest(header);
   }
 
   /**
-   * Responds with the given header and resource however checks whether the method is HEAD
-   * and therefore only sends the resource if the method is not HEAD.
-   * For use in the exception handlers so the exception message is not sent when the method is HEAD.
-   * @param header The http header.
-   * @param resourceStream The input stream of the file to send to the client.
+   * Copies bytes into the buffer of responses waiting to be sent, writing it whenever it fills. Bodies
+   * larger than the buffer go through it a buffer's worth at a time, as a socket copies an array into
+   * a direct buffer before writing it anyway.
+   * @param bytes The bytes to send.
    */
-  private void respondWithHeadCheck(String header, InputStream resourceStream) throws IOException {
-    if (method != null && method.equals("HEAD")) {
-      respond(header, null);
-    } else {
-      respond(header, resourceStream);
+  private void append(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (!out.hasRemaining()) flush();
+      int n = Math.min(bytes.length - offset, out.remaining());
+      out.put(bytes, offset, n);
+      offset += n;
     }
   }
-  
+
   /**
-   * Writes the request information to a log file. The log contains each connection's timestamp, ip, 
-   * requested resource and the returned response code.
-   * @param responseHeader The header that was sent back to the client, ie 200 OK, 404 Not Found etc.
+   * Writes the responses waiting in the buffer to the socket in one go.
    */
-  private synchronized void logRequest(String responseHeader) {
-    // Extract just the returned code and description from the header.
-    String response = responseHeader.substring(responseHeader.indexOf(" ") + 1, responseHeader.indexOf("\r\n"));
-    File serverLog = null;
-    try {
-      serverLog = new File(WebServer.SERVER_LOG);
-      serverLog.createNewFile();
-      PrintStream p = new PrintStream(new FileOutputStream(serverLog, true));
-      
-      SimpleDateFormat df = new SimpleDateFormat("dd/MMM/yyyy HH:mm:ss");
-      String str = df.format(timestamp.getTime()) + " - " + sock.getInetAddress().getHostAddress() 
-              + " \"" + (headerLines.length > 0 ? headerLines[0] : "") + "\" " + response;
-      WebServer.logln("Logged: " + str);
-      p.println(str);
-
-      p.close();
-    } catch (FileNotFoundException fnf) {
-      WebServer.logln("ERROR: Cannot find " + (serverLog != null ? serverLog.getAbsolutePath() : "server log file."));
-    } catch (IOException io) {
-      WebServer.logln("ERROR: Failed to write request to the log file.");
+  private void flush() throws IOException {
+    if (out != null && out.position() > 0) {
+      out.flip();
+      while (out.hasRemaining()) {
+        toClient.write(out);
+      }
+      out.clear();
     }
   }
 
@@ -452,20 +372,26 @@ public class WebServer implements Runnable {
       WebServer.logln("ERROR: Failed to close the stream from the client properly."); 
     }
 
-    try {
-      if (toClient != null) toClient.close();
-    } catch (IOException ex) { 
-      WebServer.logln("ERROR: Failed to close the stream to the client properly."); 
-    }
-
     try {
       if (sock != null) sock.close();
     } catch (IOException ex) { 
       WebServer.logln("ERROR: Failed to close the socket properly."); 
     }
+
+    releaseOut();
     WebServer.logln("Connection closed");
   }
 
+  /**
+   * Gives the out buffer back to the pool, once everything in it has been written.
+   */
+  private void releaseOut() {
+    if (out != null) {
+      BufferPool.release(out);
+      out = null;
+    }
+  }
+
   /**
    * Checks whether a given method is a valid HTTP method.
    * @param value The method to check.
@@ -481,6 +407,29 @@ public class WebServer implements Runnable {
   	return false;
   }
 
+  /**
+   * Checks whether the given bytes are a valid HTTP method without making a string of them.
+   * @param bytes The buffer holding the method.
+   * @param start The index of the first byte of the method.
+   * @param end The index just after the last byte of the method.
+   * @return The matching entry of VALID_METHODS or null if the method is not valid.
+   */
+  public static String validMethod(byte[] bytes, int start, int end) {
+  	for (String method : VALID_METHODS) {
+  		if (method.length() == end - start) {
+  			int i = 0;
+  			while (i < method.length() && method.charAt(i) == bytes[start + i]) i++;
+  			if (i == method.length()) {
+  				return method;
+  			}
+  		}
+  	}
+  	if (LOGGING) {
+  		logln("Method not valid: " + new String(bytes, start, end - start));
+  	}
+  	return null;
+  }
+
   /**
    * Logs the given string to the terminal if logging is turned on.
    * @param line The line to log.
@@ -502,30 +451,41 @@ public class WebServer implements Runnable {
   }
 
   // --- Exceptions ---
+  // These only carry the outcome of a request to its handler, so each is a single shared instance with
+  // no message, cause or stack trace. Filling in a trace costs more than the rest of a 404.
   /**
    * Thrown when the requested resource does not exist.
    */
-  class NotFoundException extends Exception {
-    public NotFoundException() {
-      super();
+  static class NotFoundException extends Exception {
+    private static final long serialVersionUID = 1L;
+    static final NotFoundException INSTANCE = new NotFoundException();
+
+    private NotFoundException() {
+      super(null, null, false, false);
     }
   }
 
   /**
    * Thrown when a HTTP request is made that is not supported.
    */
-  class NotImplementedException extends Exception {
-    public NotImplementedException() {
-      super();
+  static class NotImplementedException extends Exception {
+    private static final long serialVersionUID = 1L;
+    static final NotImplementedException INSTANCE = new NotImplementedException();
+
+    private NotImplementedException() {
+      super(null, null, false, false);
     }
   }
 
   /**
    * Thrown when an invalid request is made.
    */
-  class BadRequestException extends Exception {
-    public BadRequestException() {
-      super();
+  static class BadRequestException extends Exception {
+    private static final long serialVersionUID = 1L;
+    static final BadRequestException INSTANCE = new BadRequestException();
+
+    private BadRequestException() {
+      super(null, null, false, false);
     }
   }
 }
\ No newline at end of file
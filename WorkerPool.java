@@ -0,0 +1,175 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of worker threads with a bounded queue of accepted connections waiting for a worker.
+ * When the queue is full the pool either answers the connection with a 503 straight away and closes it,
+ * or makes the accept loop wait until a worker frees up a place in the queue.
+ */
+public class WorkerPool {
+  // How long a rejected connection is kept open after the 503 for the request to arrive and be drained.
+  public static final long REJECT_LINGER_MILLIS = 500;
+  private static final Response REJECT = ErrorPage.SERVICE_UNAVAILABLE.response(false, false);
+
+  private final ThreadPoolExecutor executor;
+  // Closes rejected connections once they have lingered, so the accept loop never waits on them.
+  private final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "bws-reject");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private final int queueLength;
+  private final boolean blockWhenFull;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong blocked = new AtomicLong();
+
+  /**
+   * Creates and starts the worker threads.
+   * @param threads The number of worker threads.
+   * @param queueLength The number of connections that can wait for a worker.
+   * @param blockWhenFull True to make submit wait for space in the queue, false to reject with a 503.
+   */
+  public WorkerPool(int threads, int queueLength, boolean blockWhenFull) {
+    this.queueLength = queueLength;
+    this.blockWhenFull = blockWhenFull;
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueLength), new WorkerThreadFactory());
+    executor.prestartAllCoreThreads();
+  }
+
+  /**
+   * Hands an accepted connection to a worker. Depending on the overflow policy this either waits for
+   * space in the queue or answers with a 503 when all the workers are busy and the queue is full.
+   * @param conn The connected socket.
+   */
+  public void submit(Socket conn) throws InterruptedException {
+    WebServer worker = new WebServer(conn);
+    if (blockWhenFull) {
+      if (!executor.getQueue().offer(worker)) {
+        blocked.incrementAndGet();
+        executor.getQueue().put(worker);
+      }
+      return;
+    }
+    try {
+      executor.execute(worker);
+    } catch (RejectedExecutionException re) {
+      rejected.incrementAndGet();
+      reject(conn);
+    }
+  }
+
+  /**
+   * Sends the 503 response without waiting on the client, as this runs on the accept loop. It is rendered
+   * on each call so its Date is current. The response is far smaller than a new socket's send buffer, so
+   * a non-blocking write takes all of it.
+   * The connection is then half closed and left to linger before the request is drained and it is
+   * closed, closing it with the request unread would send a reset that can make the client lose the 503.
+   * @param conn The connected socket.
+   */
+  private void reject(Socket conn) {
+    final SocketChannel channel = conn.getChannel();
+    try {
+      channel.configureBlocking(false);
+      channel.write(ByteBuffer.wrap(REJECT.toBytes()));
+      channel.shutdownOutput();
+    } catch (IOException io) {
+      WebServer.logln("IO ERROR: " + io.getMessage());
+      close(channel);
+      return;
+    }
+    closer.schedule(new Runnable() {
+      public void run() {
+        try {
+          ByteBuffer drain = ByteBuffer.allocate(4096);
+          while (channel.read(drain) > 0) {
+            drain.clear();
+          }
+        } catch (IOException io) {
+          WebServer.logln("IO ERROR: " + io.getMessage());
+        }
+        close(channel);
+      }
+    }, REJECT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void close(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      WebServer.logln("ERROR: Failed to close the socket properly.");
+    }
+  }
+
+  /**
+   * @return The number of worker threads.
+   */
+  public int getPoolSize() {
+    return executor.getPoolSize();
+  }
+
+  /**
+   * @return The number of workers currently serving a connection.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * @return The number of connections waiting for a worker.
+   */
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return The maximum number of connections that can wait for a worker.
+   */
+  public int getQueueLength() {
+    return queueLength;
+  }
+
+  /**
+   * @return The number of connections turned away with a 503.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return The number of times the accept loop had to wait for space in the queue.
+   */
+  public long getBlockedCount() {
+    return blocked.get();
+  }
+
+  /**
+   * @return The number of connections the workers have finished with.
+   */
+  public long getCompletedCount() {
+    return executor.getCompletedTaskCount();
+  }
+
+  /**
+   * Names the worker threads so they can be told apart in a thread dump.
+   */
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private int count = 0;
+
+    public synchronized Thread newThread(Runnable r) {
+      return new Thread(new Runnable() {
+        public void run() {
+          // Workers last as long as the server, so each keeps a buffer of each size to itself.
+          BufferPool.cacheOnThisThread();
+          r.run();
+        }
+      }, "bws-worker-" + (++count));
+    }
+  }
+}
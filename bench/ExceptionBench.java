@@ -0,0 +1,127 @@
+/**
+ * Microbenchmark for the cost of the exceptions the request handler throws on a 404. Compares creating
+ * a new exception each time, which fills in the stack trace, with throwing one shared instance created
+ * without a stack trace as the server does. The throws happen some frames below the catch, as they do
+ * under a worker thread's run loop, since filling in the trace costs more the deeper the stack is.
+ *
+ * JMH is not part of this project so the harness here is a plain warm up followed by timed rounds, ie:
+ *   java bench/ExceptionBench.java
+ *   java bench/ExceptionBench.java -depth 40 -rounds 10
+ */
+public class ExceptionBench {
+  public static final String USAGE = "Usage: java bench/ExceptionBench.java [options]\n"
+      + "  -depth n       Frames between the catch and the throw (default 20)\n"
+      + "  -rounds n      Timed rounds of each case after warming up (default 5)\n"
+      + "  -ops n         Throws per round (default 1000000)";
+
+  private static int depth = 20;
+  private static int rounds = 5;
+  private static int ops = 1000000;
+
+  /**
+   * Built the way the server's exceptions used to be, with a stack trace each time.
+   */
+  static class TracedNotFound extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    TracedNotFound() {
+      super();
+    }
+  }
+
+  /**
+   * Built the way the server's exceptions are now, one shared instance with no stack trace.
+   */
+  static class StacklessNotFound extends Exception {
+    private static final long serialVersionUID = 1L;
+    static final StacklessNotFound INSTANCE = new StacklessNotFound();
+
+    private StacklessNotFound() {
+      super(null, null, false, false);
+    }
+  }
+
+  private interface Case {
+    void fail() throws Exception;
+  }
+
+  // Keeps the results alive so the throws cannot be optimised away.
+  private static long sink = 0;
+
+  public static void main(String[] args) throws Exception {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "-depth" : depth = Integer.parseInt(args[i + 1]); break;
+        case "-rounds" : rounds = Integer.parseInt(args[i + 1]); break;
+        case "-ops" : ops = Integer.parseInt(args[i + 1]); break;
+        default :
+          System.out.println(USAGE);
+          System.exit(1);
+      }
+    }
+    if (args.length % 2 != 0) {
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+
+    Case traced = new Case() {
+      public void fail() throws Exception {
+        throw new TracedNotFound();
+      }
+    };
+    Case stackless = new Case() {
+      public void fail() throws Exception {
+        throw StacklessNotFound.INSTANCE;
+      }
+    };
+
+    // Warm up both cases before timing either so the JIT has compiled them.
+    for (int i = 0; i < 3; i++) {
+      run(traced, ops / 10);
+      run(stackless, ops / 10);
+    }
+
+    double tracedNs = measure("new exception with stack trace", traced);
+    double stacklessNs = measure("shared stackless exception", stackless);
+    System.out.printf("Stackless is %.1fx faster at a depth of %d frames%n", tracedNs / stacklessNs, depth);
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * Times the rounds of one case and prints the best and the mean.
+   * @return The best time per throw in nanoseconds.
+   */
+  private static double measure(String name, Case c) throws Exception {
+    double best = Double.MAX_VALUE;
+    double total = 0;
+    for (int r = 0; r < rounds; r++) {
+      long start = System.nanoTime();
+      run(c, ops);
+      double ns = (double) (System.nanoTime() - start) / ops;
+      best = Math.min(best, ns);
+      total += ns;
+    }
+    System.out.printf("%-32s best %8.1f ns/op, mean %8.1f ns/op%n", name, best, total / rounds);
+    return best;
+  }
+
+  private static void run(Case c, int n) {
+    for (int i = 0; i < n; i++) {
+      try {
+        descend(c, depth);
+      } catch (Exception e) {
+        sink += e.hashCode();
+      }
+    }
+  }
+
+  private static void descend(Case c, int frames) throws Exception {
+    if (frames <= 0) {
+      c.fail();
+    } else {
+      descend(c, frames - 1);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Load generator for comparing the server engines. Holds a large number of connections open at once
+ * from a single selector thread, each one a slow client that sends the request line, waits, and only
+ * then sends the rest of the request. While they wait every connection sits blocked in the server's
+ * readLine, which is exactly the case where a platform thread per connection runs out.
+ *
+ * Run against a server started in each mode and compare the results, ie:
+ *   java WebServer 8080 -threads 10000 -queue 1
+ *   java WebServer 8080 -engine virtual
+ *   java bench/LoadTest.java localhost 8080 -connections 10000 -delay 2000
+ * The limit on open files (ulimit -n) on both sides must be above the connection count.
+ */
+public class LoadTest {
+  public static final String USAGE = "Usage: java bench/LoadTest.java host port [options]\n"
+      + "  -connections n   Concurrent connections (default 10000)\n"
+      + "  -delay ms        Time each client waits between the request line and the rest of the request (default 1000)\n"
+      + "  -path path       Resource to request (default /)";
+
+  private static int connections = 10000;
+  private static int delay = 1000;
+  private static String path = "/";
+
+  /**
+   * The state of one client connection.
+   */
+  private static class Client {
+    SocketChannel channel;
+    ByteBuffer out;
+    long started;
+    long sendRestAt;
+    boolean restSent = false;
+    long bytesRead = 0;
+    String status = null;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+    InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+    for (int i = 2; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "-connections" : connections = Integer.parseInt(args[i + 1]); break;
+        case "-delay" : delay = Integer.parseInt(args[i + 1]); break;
+        case "-path" : path = args[i + 1]; break;
+        default :
+          System.out.println(USAGE);
+          System.exit(1);
+      }
+    }
+
+    byte[] requestLine = ("GET " + path + " HTTP/1.1\r\n").getBytes();
+    byte[] rest = ("Host: " + args[0] + "\r\nConnection: close\r\n\r\n").getBytes();
+    Selector selector = Selector.open();
+    List<Client> waiting = new ArrayList<Client>();
+    long[] latencies = new long[connections];
+    int done = 0;
+    int failed = 0;
+    Map<String, Integer> statuses = new TreeMap<String, Integer>();
+    ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < connections; i++) {
+      Client c = new Client();
+      c.channel = SocketChannel.open();
+      c.channel.configureBlocking(false);
+      c.channel.connect(address);
+      c.started = System.nanoTime();
+      c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+    }
+    System.out.println("Opened " + connections + " connections in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+    while (done + failed < connections) {
+      selector.select(10);
+      long now = System.nanoTime();
+
+      // Slow clients whose wait is over send the rest of their request.
+      for (Iterator<Client> it = waiting.iterator(); it.hasNext();) {
+        Client c = it.next();
+        if (now >= c.sendRestAt) {
+          it.remove();
+          c.out = ByteBuffer.wrap(rest);
+          c.restSent = true;
+          c.channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+        }
+      }
+
+      for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+        SelectionKey key = it.next();
+        it.remove();
+        Client c = (Client) key.attachment();
+        try {
+          if (key.isConnectable()) {
+            c.channel.finishConnect();
+            c.out = ByteBuffer.wrap(requestLine);
+            key.interestOps(SelectionKey.OP_WRITE);
+          } else if (key.isWritable()) {
+            c.channel.write(c.out);
+            if (!c.out.hasRemaining()) {
+              if (c.restSent) {
+                key.interestOps(SelectionKey.OP_READ);
+              } else {
+                key.interestOps(0);
+                c.sendRestAt = System.nanoTime() + delay * 1000000L;
+                waiting.add(c);
+              }
+            }
+          } else if (key.isReadable()) {
+            readBuffer.clear();
+            int rc = c.channel.read(readBuffer);
+            if (rc > 0 && c.status == null) {
+              String head = new String(readBuffer.array(), 0, Math.min(rc, 64));
+              int eol = head.indexOf("\r\n");
+              c.status = eol > 0 ? head.substring(head.indexOf(' ') + 1, eol) : "?";
+            }
+            if (rc > 0) {
+              c.bytesRead += rc;
+            } else if (rc < 0) {
+              key.cancel();
+              c.channel.close();
+              latencies[done++] = System.nanoTime() - c.started;
+              Integer n = statuses.get(c.status);
+              statuses.put(c.status, n == null ? 1 : n + 1);
+            }
+          }
+        } catch (IOException io) {
+          key.cancel();
+          c.channel.close();
+          failed++;
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies, 0, done);
+    System.out.println("Completed: " + done + ", failed: " + failed + " in " + elapsed / 1000000 + "ms");
+    System.out.println("Responses: " + statuses);
+    if (done > 0) {
+      System.out.println("Latency ms p50: " + latencies[done / 2] / 1000000
+          + ", p99: " + latencies[(int) (done * 0.99)] / 1000000
+          + ", max: " + latencies[done - 1] / 1000000);
+      System.out.println("Excess over client delay ms p50: " + (latencies[done / 2] / 1000000 - delay));
+    }
+  }
+}
@@ -0,0 +1,72 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.file.*;
+
+/**
+ * Checks that binary access logs convert back to the requests that were logged, across the point where
+ * the dictionary of methods and paths fills up and starts over. Logs more distinct paths than the
+ * dictionary holds, alternating methods so a request's method is often defined long before its path,
+ * and versions so some requests are logged by their whole request line, then converts the file and
+ * compares every line. Run against the compiled server, ie:
+ *   java -cp out bench/LogRoundTripTest.java
+ *   java -cp out bench/LogRoundTripTest.java -paths 200000
+ */
+public class LogRoundTripTest {
+  public static final String USAGE = "Usage: java -cp classes bench/LogRoundTripTest.java [options]\n"
+      + "  -paths n       Distinct paths to log (default " + (AccessLog.MAX_IDS * 2 + 10) + ")";
+
+  private static final String[] METHODS = { "GET", "HEAD", "OPTIONS" };
+  // Only 1.0 and 1.1 fit the version byte, the others must come back from the request line.
+  private static final String[] VERSIONS = { "1.1", "1.0", "2.0", "1.1", "0.9" };
+
+  public static void main(String[] args) throws Exception {
+    int paths = AccessLog.MAX_IDS * 2 + 10;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "-paths" : paths = Integer.parseInt(args[i + 1]); break;
+        default :
+          System.out.println(USAGE);
+          System.exit(1);
+      }
+    }
+
+    Path file = Files.createTempFile("bws-roundtrip", ".bin");
+    Files.delete(file);
+    try {
+      InetAddress address = InetAddress.getByName("127.0.0.1");
+      AccessLog log = new AccessLog(file, true, 8192, false, null);
+      log.start();
+      long time = 1426377888000L;
+      for (int i = 0; i < paths; i++) {
+        log.log(time + i, address, METHODS[i % METHODS.length], "/p" + i, VERSIONS[i % VERSIONS.length],
+            null, Response.OK, 100);
+      }
+      log.shutdown();
+      log.join();
+
+      StringWriter text = new StringWriter();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+        LogConverter.convert(in, Long.MIN_VALUE, Long.MAX_VALUE, text);
+      }
+      String[] lines = text.toString().split(System.lineSeparator());
+      if (lines.length != paths) {
+        fail("Expected " + paths + " lines but converted " + lines.length + ".");
+      }
+      for (int i = 0; i < paths; i++) {
+        String expected = HttpDate.formatLog(time + i) + " - 127.0.0.1 \"" + METHODS[i % METHODS.length]
+            + " /p" + i + " HTTP/" + VERSIONS[i % VERSIONS.length] + "\" 200 OK";
+        if (!lines[i].equals(expected)) {
+          fail("Line " + (i + 1) + " is '" + lines[i] + "', expected '" + expected + "'.");
+        }
+      }
+      System.out.println("OK: " + paths + " requests round tripped through " + Files.size(file) + " bytes.");
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static void fail(String message) {
+    System.out.println("FAILED: " + message);
+    System.exit(1);
+  }
+}
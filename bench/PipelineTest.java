@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for keep-alive and pipelining. Each client thread keeps one connection open and
+ * repeatedly sends a batch of requests back to back, then reads all of their responses. With a depth
+ * of 1 this measures plain keep-alive, with a larger depth the server can answer the whole batch in a
+ * handful of socket writes.
+ *
+ * Start a server and compare the requests per second at each depth, ie:
+ *   java WebServer 8080 -keepalive 1000000
+ *   java bench/PipelineTest.java localhost 8080 -depth 1
+ *   java bench/PipelineTest.java localhost 8080 -depth 16
+ */
+public class PipelineTest {
+  public static final String USAGE = "Usage: java bench/PipelineTest.java host port [options]\n"
+      + "  -clients n     Concurrent connections, one thread each (default 8)\n"
+      + "  -depth n       Requests sent before reading their responses (default 16)\n"
+      + "  -seconds n     How long to run for (default 10)\n"
+      + "  -path path     Resource to request (default /style.css)";
+
+  private static int clients = 8;
+  private static int depth = 16;
+  private static int seconds = 10;
+  private static String path = "/style.css";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println(USAGE);
+      System.exit(1);
+    }
+    final String host = args[0];
+    final int port = Integer.parseInt(args[1]);
+    for (int i = 2; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "-clients" : clients = Integer.parseInt(args[i + 1]); break;
+        case "-depth" : depth = Integer.parseInt(args[i + 1]); break;
+        case "-seconds" : seconds = Integer.parseInt(args[i + 1]); break;
+        case "-path" : path = args[i + 1]; break;
+        default :
+          System.out.println(USAGE);
+          System.exit(1);
+      }
+    }
+
+    byte[] one = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes();
+    final byte[] batch = new byte[one.length * depth];
+    for (int i = 0; i < depth; i++) {
+      System.arraycopy(one, 0, batch, i * one.length, one.length);
+    }
+
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong reconnects = new AtomicLong();
+    final long end = System.nanoTime() + seconds * 1000000000L;
+    Thread[] threads = new Thread[clients];
+    for (int t = 0; t < clients; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          while (System.nanoTime() < end) {
+            try (Socket sock = new Socket(host, port)) {
+              sock.setTcpNoDelay(true);
+              OutputStream out = sock.getOutputStream();
+              InputStream in = new BufferedInputStream(sock.getInputStream(), 65536);
+              while (System.nanoTime() < end) {
+                out.write(batch);
+                for (int i = 0; i < depth; i++) {
+                  if (!readResponse(in)) {
+                    throw new EOFException();
+                  }
+                  completed.incrementAndGet();
+                }
+              }
+            } catch (IOException io) {
+              // The server closed the connection, ie it reached its keep-alive limit.
+              reconnects.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    System.out.println("Depth " + depth + ", " + clients + " clients: " + completed.get() / seconds + " requests/s"
+        + " (" + completed.get() + " in " + seconds + "s, " + reconnects.get() + " reconnects)");
+  }
+
+  /**
+   * Reads one response, skipping the body using its Content-Length.
+   * @return False if the connection closed or the server will close it after this response.
+   */
+  private static boolean readResponse(InputStream in) throws IOException {
+    long length = 0;
+    boolean close = false;
+    String line;
+    if ((line = readLine(in)) == null) {
+      return false;
+    }
+    while ((line = readLine(in)) != null && line.length() > 0) {
+      String lower = line.toLowerCase(Locale.ROOT);
+      if (lower.startsWith("content-length:")) {
+        length = Long.parseLong(line.substring(15).trim());
+      } else if (lower.startsWith("connection:") && lower.contains("close")) {
+        close = true;
+      }
+    }
+    while (length > 0) {
+      long n = in.skip(length);
+      if (n <= 0) {
+        if (in.read() < 0) return false;
+        n = 1;
+      }
+      length -= n;
+    }
+    return !close;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) return null;
+      if (c != '\r') sb.append((char) c);
+    }
+    return sb.toString();
+  }
+}